@@ -0,0 +1,401 @@
+package ags.utils;
+
+import java.util.Arrays;
+import java.util.List;
+
+import ags.utils.KdTree.Entry;
+import ags.utils.KdTree.QueryStats;
+import ags.utils.KdTree.ResultHeap;
+
+/**
+ * A read-only kd-tree under Manhattan distance, compiled from a set of points
+ * into flat arrays. Nodes are numbered breadth-first (the children of node i
+ * are 2i + 1 and 2i + 2) and split at the median, so there are no pointers
+ * between nodes. Searches keep their state on a small local stack instead of
+ * in the nodes, so any number of threads can search the same tree at once.
+ *
+ * Each point carries a stamp and searches skip points stamped before a given
+ * minimum, which lets a sliding window retire old points without touching the
+ * tree. Like KdTree.Manhattan, dimensions where either point is NaN are
+ * ignored. Trees with a payload width keep their values as rows of a
+ * double[] instead of as objects.
+ *
+ * Searches walk the tree with a caller-supplied stack of at least
+ * getStackSize() entries, so a caller can reuse one stack across queries
+ * while concurrent searches each use their own.
+ */
+public class FlatKdTree<T> {
+    private static final int bucketSize = 24;
+    private static final int splitSampleSize = 32;
+
+    private final int dimensions;
+    private final int size;
+    // A power of two. Nodes [leaves - 1, 2 * leaves - 1) are leaves.
+    private final int leaves;
+    private final int depth;
+
+    // Points in tree order, point i at [i * dimensions, (i + 1) * dimensions)
+    private final float[] points;
+    private final Object[] data;
+    private final int payloadWidth;
+    private final double[] payloads;
+    private final long[] stamps;
+
+    // Stems only
+    private final int[] splitDimension;
+    private final double[] splitValue;
+
+    // All nodes, node i at [i * dimensions, (i + 1) * dimensions)
+    private final double[] minLimit, maxLimit;
+
+    // Leaf l holds points [leafStart[l], leafStart[l + 1])
+    private final int[] leafStart;
+
+    /**
+     * Compiles a tree from the first 'count' points of the given arrays, which
+     * are copied and left unchanged. If payloadWidth is positive, point i's
+     * value is row i of sourcePayloads and sourceData is ignored.
+     */
+    public FlatKdTree(int dimensions, float[] sourcePoints, Object[] sourceData, double[] sourcePayloads,
+            int payloadWidth, long[] sourceStamps, int count) {
+        this.dimensions = dimensions;
+        this.payloadWidth = payloadWidth;
+        this.size = count;
+        int leaves = 1, depth = 0;
+        while (leaves * bucketSize < count) {
+            leaves *= 2;
+            depth++;
+        }
+        this.leaves = leaves;
+        this.depth = depth;
+        int nodes = 2 * leaves - 1;
+        this.splitDimension = new int[leaves - 1];
+        this.splitValue = new double[leaves - 1];
+        this.minLimit = new double[nodes * dimensions];
+        this.maxLimit = new double[nodes * dimensions];
+        this.leafStart = new int[leaves + 1];
+
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        this.build(0, sourcePoints, order, new double[count], new double[2 * dimensions], 0, count);
+        this.leafStart[leaves] = count;
+
+        this.points = new float[count * dimensions];
+        this.data = new Object[payloadWidth > 0 ? 0 : count];
+        this.payloads = new double[count * payloadWidth];
+        this.stamps = new long[count];
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(sourcePoints, order[i] * dimensions, this.points, i * dimensions, dimensions);
+            if (payloadWidth > 0) {
+                System.arraycopy(sourcePayloads, order[i] * payloadWidth, this.payloads, i * payloadWidth, payloadWidth);
+            } else {
+                this.data[i] = sourceData[order[i]];
+            }
+            this.stamps[i] = sourceStamps[order[i]];
+        }
+
+        // Bounds go bottom up: leaves from their points (NaN if any point is
+        // NaN on that axis), stems as the union of their children
+        for (int l = 0; l < leaves; l++) {
+            int offset = (leaves - 1 + l) * dimensions;
+            for (int j = 0; j < dimensions; j++) {
+                double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+                for (int i = leafStart[l]; i < leafStart[l + 1]; i++) {
+                    min = Math.min(min, points[i * dimensions + j]);
+                    max = Math.max(max, points[i * dimensions + j]);
+                }
+                minLimit[offset + j] = min;
+                maxLimit[offset + j] = max;
+            }
+        }
+        for (int node = leaves - 2; node >= 0; node--) {
+            int offset = node * dimensions, left = (2 * node + 1) * dimensions, right = (2 * node + 2) * dimensions;
+            for (int j = 0; j < dimensions; j++) {
+                minLimit[offset + j] = Math.min(minLimit[left + j], minLimit[right + j]);
+                maxLimit[offset + j] = Math.max(maxLimit[left + j], maxLimit[right + j]);
+            }
+        }
+    }
+
+    /**
+     * Splits order[lo..hi) at its median along the axis that looks widest and
+     * recurses into the node's children. keys and sample are scratch space.
+     */
+    private void build(int node, float[] sourcePoints, int[] order, double[] keys, double[] sample, int lo, int hi) {
+        if (node >= leaves - 1) {
+            leafStart[node - (leaves - 1)] = lo;
+            return;
+        }
+
+        int dim = widestSampledAxis(sourcePoints, order, sample, lo, hi);
+        for (int j = lo; j < hi; j++) {
+            keys[j] = sourcePoints[order[j] * dimensions + dim];
+        }
+        int mid = (lo + hi) >>> 1;
+        if (mid < hi) {
+            select(keys, order, lo, hi, mid);
+        }
+        splitDimension[node] = dim;
+        splitValue[node] = mid < hi ? keys[mid] : 0;
+        build(2 * node + 1, sourcePoints, order, keys, sample, lo, mid);
+        build(2 * node + 2, sourcePoints, order, keys, sample, mid, hi);
+    }
+
+    /**
+     * Estimates the widest axis of order[lo..hi) from a few evenly spaced
+     * points, which is much cheaper than exact bounds at every level
+     */
+    private int widestSampledAxis(float[] sourcePoints, int[] order, double[] sample, int lo, int hi) {
+        for (int j = 0; j < dimensions; j++) {
+            sample[j] = Double.POSITIVE_INFINITY;
+            sample[dimensions + j] = Double.NEGATIVE_INFINITY;
+        }
+        int step = Math.max(1, (hi - lo) / splitSampleSize);
+        for (int i = lo; i < hi; i += step) {
+            int offset = order[i] * dimensions;
+            for (int j = 0; j < dimensions; j++) {
+                double value = sourcePoints[offset + j];
+                if (!Double.isNaN(value)) {
+                    sample[j] = Math.min(sample[j], value);
+                    sample[dimensions + j] = Math.max(sample[dimensions + j], value);
+                }
+            }
+        }
+        int widest = 0;
+        double width = 0;
+        for (int j = 0; j < dimensions; j++) {
+            if (sample[dimensions + j] - sample[j] > width) {
+                widest = j;
+                width = sample[dimensions + j] - sample[j];
+            }
+        }
+        return widest;
+    }
+
+    /**
+     * Get the payload width, or 0 if values are stored as objects
+     */
+    public int getPayloadWidth() {
+        return payloadWidth;
+    }
+
+    /**
+     * Get the length of the stack searches need
+     */
+    public int getStackSize() {
+        return depth + 2;
+    }
+
+    /**
+     * Get the number of points in the tree, including ones a search would skip
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Adds the nearest points to 'location' stamped at or after 'minStamp' to
+     * 'resultHeap', which may already hold other candidates
+     */
+    public void nearestNeighbor(double[] location, ResultHeap resultHeap, long minStamp, int[] stack, QueryStats stats) {
+        long startTime = stats == null ? 0 : System.nanoTime();
+        int nodes = 0, leafCount = 0, dists = 0;
+        int stackSize = 0;
+        stack[stackSize++] = 0;
+        while (stackSize > 0) {
+            int node = stack[--stackSize];
+            nodes++;
+            if (regionDist(location, node) > resultHeap.getMaxDist()) {
+                continue;
+            }
+
+            if (node >= leaves - 1) {
+                int l = node - (leaves - 1);
+                leafCount++;
+                double range = resultHeap.getMaxDist();
+                for (int i = leafStart[l]; i < leafStart[l + 1]; i++) {
+                    if (stamps[i] >= minStamp) {
+                        dists++;
+                        double dist = pointDist(i, location);
+                        if (dist < range) {
+                            if (payloadWidth > 0) {
+                                resultHeap.addValue(dist, payloads, i * payloadWidth, payloadWidth);
+                            } else {
+                                resultHeap.addValue(dist, data[i]);
+                            }
+                            range = resultHeap.getMaxDist();
+                        }
+                    }
+                }
+                continue;
+            }
+
+            // Push the far child first so the near one is searched first
+            int near = location[splitDimension[node]] > splitValue[node] ? 2 * node + 2 : 2 * node + 1;
+            stack[stackSize++] = 4 * node + 3 - near;
+            stack[stackSize++] = near;
+        }
+
+        if (stats != null) {
+            stats.record(nodes, leafCount, dists, resultHeap.replacements, System.nanoTime() - startTime);
+        }
+    }
+
+    /**
+     * Adds the points within 'radius' of 'location' stamped at or after
+     * 'minStamp' to 'results'
+     */
+    public void rangeSearch(double[] location, double radius, long minStamp, int[] stack, List<Entry<T>> results) {
+        int stackSize = 0;
+        stack[stackSize++] = 0;
+        while (stackSize > 0) {
+            int node = stack[--stackSize];
+            if (regionDist(location, node) > radius) {
+                continue;
+            }
+            if (node >= leaves - 1) {
+                int l = node - (leaves - 1);
+                for (int i = leafStart[l]; i < leafStart[l + 1]; i++) {
+                    if (stamps[i] >= minStamp) {
+                        double dist = pointDist(i, location);
+                        if (dist <= radius) {
+                            results.add(new Entry<T>(dist, valueAt(i)));
+                        }
+                    }
+                }
+                continue;
+            }
+            stack[stackSize++] = 2 * node + 1;
+            stack[stackSize++] = 2 * node + 2;
+        }
+    }
+
+    /**
+     * Counts the points within 'radius' of 'location' stamped at or after
+     * 'minStamp'
+     */
+    public int countWithin(double[] location, double radius, long minStamp, int[] stack) {
+        int count = 0;
+        int stackSize = 0;
+        stack[stackSize++] = 0;
+        while (stackSize > 0) {
+            int node = stack[--stackSize];
+            if (regionDist(location, node) > radius) {
+                continue;
+            }
+            if (node >= leaves - 1) {
+                int l = node - (leaves - 1);
+                for (int i = leafStart[l]; i < leafStart[l + 1]; i++) {
+                    if (stamps[i] >= minStamp && pointDist(i, location) <= radius) {
+                        count++;
+                    }
+                }
+                continue;
+            }
+            stack[stackSize++] = 2 * node + 1;
+            stack[stackSize++] = 2 * node + 2;
+        }
+        return count;
+    }
+
+    /**
+     * Returns point i's value, or a fresh copy of its payload row
+     */
+    @SuppressWarnings("unchecked")
+    private T valueAt(int i) {
+        if (payloadWidth == 0) {
+            return (T) data[i];
+        }
+        return (T) Arrays.copyOfRange(payloads, i * payloadWidth, (i + 1) * payloadWidth);
+    }
+
+    /**
+     * Copies the points stamped at or after 'minStamp' into the given arrays
+     * (allPayloads instead of allData if this stores payloads) starting at
+     * index j. Returns the index after the last copied point.
+     */
+    public int gather(long minStamp, float[] allPoints, Object[] allData, double[] allPayloads, long[] allStamps, int j) {
+        for (int i = 0; i < size; i++) {
+            if (stamps[i] >= minStamp) {
+                System.arraycopy(points, i * dimensions, allPoints, j * dimensions, dimensions);
+                if (payloadWidth > 0) {
+                    System.arraycopy(payloads, i * payloadWidth, allPayloads, j * payloadWidth, payloadWidth);
+                } else {
+                    allData[j] = data[i];
+                }
+                allStamps[j++] = stamps[i];
+            }
+        }
+        return j;
+    }
+
+    private double pointDist(int i, double[] location) {
+        int offset = i * dimensions;
+        double d = 0;
+        for (int j = 0; j < dimensions; j++) {
+            d += Math.abs(points[offset + j] - location[j]);
+        }
+        if (Double.isNaN(d)) {
+            d = 0;
+            for (int j = 0; j < dimensions; j++) {
+                double diff = points[offset + j] - location[j];
+                if (!Double.isNaN(diff)) {
+                    d += Math.abs(diff);
+                }
+            }
+        }
+        return d;
+    }
+
+    private double regionDist(double[] location, int node) {
+        int offset = node * dimensions;
+        double d = 0;
+        for (int j = 0; j < dimensions; j++) {
+            double diff = 0;
+            if (location[j] > maxLimit[offset + j]) {
+                diff = location[j] - maxLimit[offset + j];
+            } else if (location[j] < minLimit[offset + j]) {
+                diff = minLimit[offset + j] - location[j];
+            }
+            if (!Double.isNaN(diff)) {
+                d += diff;
+            }
+        }
+        return d;
+    }
+
+    /**
+     * Reorders keys[lo..hi) (and order alongside it) so keys[k] is the k-th
+     * smallest key (quickselect)
+     */
+    private static void select(double[] keys, int[] order, int lo, int hi, int k) {
+        hi--;
+        while (hi > lo) {
+            double pivot = keys[(lo + hi) >>> 1];
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (keys[i] < pivot) i++;
+                while (keys[j] > pivot) j--;
+                if (i <= j) {
+                    double key = keys[i];
+                    keys[i] = keys[j];
+                    keys[j] = key;
+                    int o = order[i];
+                    order[i] = order[j];
+                    order[j] = o;
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+}
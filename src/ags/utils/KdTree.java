@@ -6,8 +6,8 @@ package ags.utils;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 /**
  * An efficient well-optimized kd-tree
@@ -18,21 +18,61 @@ import java.util.List;
 // MODIFIED by Voidious, 2011:
 // - add find farthest neighbor search
 // - also check cursor != null in removeOld
+//
+// MODIFIED for BeepBoop:
+// - store each leaf's coordinates in one contiguous point-major array
+// - evict old points in constant time through a ring buffer of leaf slots
+// - lazily collapse stems with an empty child
+// - periodically rebuild unbalanced trees with median splits
+// - optionally record the cost of nearest neighbor queries
+// - store coordinates in single precision
+// - add radius and count-within-radius searches
+// - add batched nearest neighbor search
+// - allow searching into reusable result heaps
+// - add a resumable best-first nearest neighbor iterator
+// - optionally store double[] values unboxed, as payload columns
+// - add a (1 + epsilon)-approximate nearest neighbor mode
+// - allow restarting neighbor iterators at a new location
 public abstract class KdTree<T> {
     // Static variables
     private static final int bucketSize = 24;
 
+    // The root checks its shape every rebuildCheckInterval insertions and
+    // rebuilds itself if its deepest leaf is more than maxDepthRatio times
+    // deeper than a balanced tree's, or if the standard deviation of its leaf
+    // sizes exceeds maxOccupancyDeviation times the mean leaf size
+    private static final int rebuildCheckInterval = 1024;
+    private static final double maxDepthRatio = 2.0;
+    private static final double maxOccupancyDeviation = 1.0;
+
     // All types
     private final int dimensions;
-    private final KdTree<T> parent;
+    private KdTree<T> parent;
 
-    // Root only
-    private final LinkedList<double[]> locationStack;
+    // Root only. Points are assigned ring slots in insertion order; each slot
+    // records the leaf holding the point and its index within that leaf.
     private final Integer sizeLimit;
-
-    // Leaf only
-    private double[][] locations;
+    private final KdTree<T>[] slotLeaves;
+    private final int[] slotIndices;
+    private int oldestSlot;
+    private int insertsSinceCheck;
+    private QueryStats stats;
+    private int[][] batchScratch;
+    // 1 + epsilon: nodes are only searched if they could hold a point this
+    // many times nearer than the current k-th nearest
+    private double approximation = 1;
+
+    // Root only. Trees with a payload width take double[] values of that
+    // length and copy them into payloads at the point's ring slot instead of
+    // keeping them as objects, so their points hold no objects for the GC
+    private final int payloadWidth;
+    private final double[] payloads;
+
+    // Leaf only (points holds the coordinates of point i at [i * dimensions, (i + 1) * dimensions)).
+    // Coordinates are stored as floats and widened to double for distance math.
+    private float[] points;
     private Object[] data;
+    private int[] slots;
     private int locationCount;
 
     // Stem only
@@ -52,40 +92,92 @@ public abstract class KdTree<T> {
      * maxiumum size (after which it throws away old points)
      */
     private KdTree(int dimensions, Integer sizeLimit) {
+        this(dimensions, sizeLimit, 0);
+    }
+
+    /**
+     * Construct a size-limited KdTree whose values are double[]s of length
+     * payloadWidth, which it stores unboxed (or ordinary values if it is 0)
+     */
+    @SuppressWarnings("unchecked")
+    private KdTree(int dimensions, Integer sizeLimit, int payloadWidth) {
+        if (payloadWidth > 0 && sizeLimit == null) {
+            throw new IllegalStateException("Only size-limited trees store payloads");
+        }
         this.dimensions = dimensions;
 
         // Init as leaf
-        this.locations = new double[bucketSize][];
-        this.data = new Object[bucketSize];
-        this.locationCount = 0;
-        this.singularity = true;
+        initLeaf(bucketSize);
 
         // Init as root
         this.parent = null;
         this.sizeLimit = sizeLimit;
         if (sizeLimit != null) {
-            this.locationStack = new LinkedList<double[]>();
+            this.slotLeaves = (KdTree<T>[]) new KdTree<?>[sizeLimit + 1];
+            this.slotIndices = new int[sizeLimit + 1];
         } else {
-            this.locationStack = null;
+            this.slotLeaves = null;
+            this.slotIndices = null;
         }
+        this.payloadWidth = payloadWidth;
+        this.payloads = payloadWidth > 0 ? new double[this.slotLeaves.length * payloadWidth] : null;
     }
 
     /**
      * Constructor for child nodes. Internal use only.
      */
     private KdTree(KdTree<T> parent, boolean right) {
+        this(parent, Math.max(bucketSize, parent.locationCount));
+    }
+
+    /**
+     * Constructor for child leaves with a given capacity. Internal use only.
+     */
+    private KdTree(KdTree<T> parent, int capacity) {
         this.dimensions = parent.dimensions;
 
         // Init as leaf
-        this.locations = new double[Math.max(bucketSize, parent.locationCount)][];
-        this.data = new Object[Math.max(bucketSize, parent.locationCount)];
-        this.locationCount = 0;
-        this.singularity = true;
+        initLeaf(capacity);
 
         // Init as non-root
         this.parent = parent;
-        this.locationStack = null;
         this.sizeLimit = null;
+        this.slotLeaves = null;
+        this.slotIndices = null;
+        this.payloadWidth = 0;
+        this.payloads = null;
+    }
+
+    /**
+     * Makes this node an empty leaf with room for the given number of points
+     */
+    private void initLeaf(int capacity) {
+        this.points = new float[capacity * dimensions];
+        this.data = new Object[capacity];
+        this.slots = new int[capacity];
+        this.locationCount = 0;
+        this.left = null;
+        this.right = null;
+        this.minLimit = null;
+        this.maxLimit = null;
+        this.singularity = true;
+    }
+
+    /**
+     * Record the cost of future nearest neighbor queries into the given stats
+     * (or stop recording if null)
+     */
+    public void setStats(QueryStats stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * Make nearest neighbor queries (1 + epsilon)-approximate: each neighbor
+     * found is at most 1 + epsilon times farther than the true one of the
+     * same rank. 0 makes them exact again.
+     */
+    public void setApproximation(double epsilon) {
+        this.approximation = 1 + epsilon;
     }
 
     /**
@@ -95,14 +187,33 @@ public abstract class KdTree<T> {
         return locationCount;
     }
 
+    /**
+     * Get the length of the double[] values stored unboxed (0 if values are
+     * stored as objects)
+     */
+    public int getPayloadWidth() {
+        return payloadWidth;
+    }
+
     /**
      * Add a point and associated value to the tree
      */
     public void addPoint(double[] location, T value) {
+        // Round once up front so bounds and routing agree with the stored point
+        float[] stored = new float[dimensions];
+        for (int i = 0; i < dimensions; i++) {
+            stored[i] = (float) location[i];
+        }
         KdTree<T> cursor = this;
 
-        while (cursor.locations == null || cursor.locationCount >= cursor.locations.length) {
-            if (cursor.locations != null) {
+        while (cursor.points == null || cursor.locationCount >= cursor.data.length) {
+            if (cursor.points == null && (cursor.left.locationCount == 0 || cursor.right.locationCount == 0)) {
+                // Evictions emptied one side of this stem
+                collapse(cursor);
+                continue;
+            }
+
+            if (cursor.points != null) {
                 cursor.splitDimension = cursor.findWidestAxis();
                 cursor.splitValue = (cursor.minLimit[cursor.splitDimension] + cursor.maxLimit[cursor.splitDimension]) * 0.5f;
 
@@ -118,12 +229,9 @@ public abstract class KdTree<T> {
                 // Don't split node if it has no width in any axis. Double the
                 // bucket size instead
                 if (cursor.minLimit[cursor.splitDimension] == cursor.maxLimit[cursor.splitDimension]) {
-                    double[][] newLocations = new double[cursor.locations.length * 2][];
-                    System.arraycopy(cursor.locations, 0, newLocations, 0, cursor.locationCount);
-                    cursor.locations = newLocations;
-                    Object[] newData = new Object[newLocations.length];
-                    System.arraycopy(cursor.data, 0, newData, 0, cursor.locationCount);
-                    cursor.data = newData;
+                    cursor.points = Arrays.copyOf(cursor.points, cursor.points.length * 2);
+                    cursor.data = Arrays.copyOf(cursor.data, cursor.data.length * 2);
+                    cursor.slots = Arrays.copyOf(cursor.slots, cursor.slots.length * 2);
                     break;
                 }
 
@@ -139,75 +247,157 @@ public abstract class KdTree<T> {
 
                 // Move locations into children
                 for (int i = 0; i < cursor.locationCount; i++) {
-                    double[] oldLocation = cursor.locations[i];
-                    Object oldData = cursor.data[i];
-                    if (oldLocation[cursor.splitDimension] > cursor.splitValue) {
-                        // Right
-                        right.locations[right.locationCount] = oldLocation;
-                        right.data[right.locationCount] = oldData;
-                        right.locationCount++;
-                        right.extendBounds(oldLocation);
-                    } else {
-                        // Left
-                        left.locations[left.locationCount] = oldLocation;
-                        left.data[left.locationCount] = oldData;
-                        left.locationCount++;
-                        left.extendBounds(oldLocation);
-                    }
+                    int offset = i * dimensions;
+                    KdTree<T> child = cursor.points[offset + cursor.splitDimension] > cursor.splitValue ? right : left;
+                    trackSlot(child, child.appendPoint(cursor.points, offset, cursor.data[i], cursor.slots[i]));
                 }
 
                 // Make into stem
                 cursor.left = left;
                 cursor.right = right;
-                cursor.locations = null;
+                cursor.points = null;
                 cursor.data = null;
+                cursor.slots = null;
             }
 
             cursor.locationCount++;
-            cursor.extendBounds(location);
+            cursor.extendBounds(stored, 0);
 
-            if (location[cursor.splitDimension] > cursor.splitValue) {
+            if (stored[cursor.splitDimension] > cursor.splitValue) {
                 cursor = cursor.right;
             } else {
                 cursor = cursor.left;
             }
         }
 
-        cursor.locations[cursor.locationCount] = location;
-        cursor.data[cursor.locationCount] = value;
-        cursor.locationCount++;
-        cursor.extendBounds(location);
-
         if (this.sizeLimit != null) {
-            this.locationStack.add(location);
+            // locationCount already includes the new point if the root is a stem
+            int liveCount = this.points == null ? this.locationCount - 1 : this.locationCount;
+            int slot = (this.oldestSlot + liveCount) % this.slotLeaves.length;
+            if (this.payloads != null) {
+                System.arraycopy((double[]) value, 0, this.payloads, slot * payloadWidth, payloadWidth);
+                value = null;
+            }
+            trackSlot(cursor, cursor.appendPoint(stored, 0, value, slot));
             if (this.locationCount > this.sizeLimit) {
                 this.removeOld();
             }
+        } else {
+            cursor.appendPoint(stored, 0, value, 0);
+        }
+
+        if (++this.insertsSinceCheck >= rebuildCheckInterval) {
+            this.insertsSinceCheck = 0;
+            if (this.isUnbalanced()) {
+                this.rebuild();
+            }
         }
     }
 
     /**
-     * Extends the bounds of this node do include a new location
+     * Copies a point into the end of this leaf's bucket, which must have room
+     * for it. Returns the index of the point within the leaf.
      */
-    private final void extendBounds(double[] location) {
+    private final int appendPoint(float[] source, int offset, Object value, int slot) {
+        System.arraycopy(source, offset, points, locationCount * dimensions, dimensions);
+        data[locationCount] = value;
+        slots[locationCount] = slot;
+        extendBounds(source, offset);
+        return locationCount++;
+    }
+
+    /**
+     * Adds a leaf's i-th point to a result heap, copying its payload if this
+     * (root) stores payloads
+     */
+    private final void addResult(ResultHeap resultHeap, double dist, KdTree<T> leaf, int i) {
+        if (payloads == null) {
+            resultHeap.addValue(dist, leaf.data[i]);
+        } else {
+            resultHeap.addValue(dist, payloads, leaf.slots[i] * payloadWidth, payloadWidth);
+        }
+    }
+
+    /**
+     * Returns a leaf's i-th value, a fresh copy of its payload if this (root)
+     * stores payloads
+     */
+    @SuppressWarnings("unchecked")
+    private final T valueOf(KdTree<T> leaf, int i) {
+        if (payloads == null) {
+            return (T) leaf.data[i];
+        }
+        int offset = leaf.slots[i] * payloadWidth;
+        return (T) Arrays.copyOfRange(payloads, offset, offset + payloadWidth);
+    }
+
+    /**
+     * Records in the root's ring buffer that a leaf's i-th point now lives there
+     */
+    private final void trackSlot(KdTree<T> leaf, int i) {
+        if (slotLeaves != null) {
+            slotLeaves[leaf.slots[i]] = leaf;
+            slotIndices[leaf.slots[i]] = i;
+        }
+    }
+
+    /**
+     * Replaces a stem that has an empty child with its other child, which
+     * also tightens the stem's bounds to those of the remaining points
+     */
+    private void collapse(KdTree<T> stem) {
+        KdTree<T> keep = stem.left.locationCount == 0 ? stem.right : stem.left;
+        if (keep.locationCount == 0) {
+            stem.initLeaf(bucketSize);
+            return;
+        }
+
+        stem.points = keep.points;
+        stem.data = keep.data;
+        stem.slots = keep.slots;
+        stem.left = keep.left;
+        stem.right = keep.right;
+        stem.splitDimension = keep.splitDimension;
+        stem.splitValue = keep.splitValue;
+        stem.minLimit = keep.minLimit;
+        stem.maxLimit = keep.maxLimit;
+        stem.singularity = keep.singularity;
+        if (stem.points != null) {
+            for (int i = 0; i < stem.locationCount; i++) {
+                trackSlot(stem, i);
+            }
+        } else {
+            stem.left.parent = stem;
+            stem.right.parent = stem;
+        }
+    }
+
+    /**
+     * Extends the bounds of this node do include a new location, which is
+     * stored at the given offset of the source array
+     */
+    private final void extendBounds(float[] source, int offset) {
         if (minLimit == null) {
             minLimit = new double[dimensions];
-            System.arraycopy(location, 0, minLimit, 0, dimensions);
             maxLimit = new double[dimensions];
-            System.arraycopy(location, 0, maxLimit, 0, dimensions);
+            for (int i = 0; i < dimensions; i++) {
+                minLimit[i] = source[offset + i];
+                maxLimit[i] = source[offset + i];
+            }
             return;
         }
 
         for (int i = 0; i < dimensions; i++) {
-            if (Double.isNaN(location[i])) {
+            double value = source[offset + i];
+            if (Double.isNaN(value)) {
                 minLimit[i] = Double.NaN;
                 maxLimit[i] = Double.NaN;
                 singularity = false;
-            } else if (minLimit[i] > location[i]) {
-                minLimit[i] = location[i];
+            } else if (minLimit[i] > value) {
+                minLimit[i] = value;
                 singularity = false;
-            } else if (maxLimit[i] < location[i]) {
-                maxLimit[i] = location[i];
+            } else if (maxLimit[i] < value) {
+                maxLimit[i] = value;
                 singularity = false;
             }
         }
@@ -232,37 +422,236 @@ public abstract class KdTree<T> {
     }
 
     /**
-     * Remove the oldest value from the tree. Note: This cannot trim the bounds
-     * of nodes, nor empty nodes, and thus you can't expect it to perfectly
-     * preserve the speed of the tree as you keep adding.
+     * Remove the oldest point from a size-limited tree, if there is one
+     */
+    public void removeOldest() {
+        if (this.sizeLimit == null) {
+            throw new IllegalStateException("Only size-limited trees track the age of points");
+        }
+        if (this.locationCount > 0) {
+            this.removeOld();
+        }
+    }
+
+    /**
+     * Remove the oldest value from the tree. Its slot in the ring buffer says
+     * where it is, and the leaf's last point is moved into the gap, so this
+     * needs no search and no shifting. Note: This cannot trim the bounds of
+     * nodes. Stems left with an empty child are collapsed on the next insert.
      */
     private void removeOld() {
-        double[] location = this.locationStack.removeFirst();
-        KdTree<T> cursor = this;
+        int slot = this.oldestSlot;
+        KdTree<T> cursor = this.slotLeaves[slot];
+        int i = this.slotIndices[slot];
+        this.slotLeaves[slot] = null;
+        this.oldestSlot = (slot + 1) % this.slotLeaves.length;
+
+        int last = cursor.locationCount - 1;
+        if (i != last) {
+            System.arraycopy(cursor.points, last * dimensions, cursor.points, i * dimensions, dimensions);
+            cursor.data[i] = cursor.data[last];
+            cursor.slots[i] = cursor.slots[last];
+            trackSlot(cursor, i);
+        }
+        cursor.data[last] = null;
+        do {
+            cursor.locationCount--;
+            cursor = cursor.parent;
+        } while (cursor != null);
+    }
 
-        // Find the node where the point is
-        while (cursor.locations == null) {
-            if (location[cursor.splitDimension] > cursor.splitValue) {
-                cursor = cursor.right;
-            } else {
-                cursor = cursor.left;
+    /**
+     * Shape statistics gathered over the leaves of a tree
+     */
+    private static class Shape {
+        int maxDepth;
+        int leaves;
+        double occupancy;
+        double sqrOccupancy;
+    }
+
+    private void measure(int depth, Shape shape) {
+        if (points == null) {
+            left.measure(depth + 1, shape);
+            right.measure(depth + 1, shape);
+        } else if (!singularity) {
+            // Leaves of identical points can't be split, so rebuilding won't help them
+            shape.maxDepth = Math.max(depth, shape.maxDepth);
+            shape.leaves++;
+            shape.occupancy += locationCount;
+            shape.sqrOccupancy += locationCount * locationCount;
+        }
+    }
+
+    /**
+     * Checks if the tree is much deeper than a balanced tree of the same size
+     * or if its points are spread very unevenly across the leaves
+     */
+    public boolean isUnbalanced() {
+        Shape shape = new Shape();
+        measure(0, shape);
+        if (shape.leaves < 2) {
+            return false;
+        }
+        double balancedDepth = Math.log(locationCount / (0.75 * bucketSize)) / Math.log(2);
+        double meanOccupancy = shape.occupancy / shape.leaves;
+        double occupancyVariance = shape.sqrOccupancy / shape.leaves - meanOccupancy * meanOccupancy;
+        return shape.maxDepth > maxDepthRatio * Math.max(1, balancedDepth) + 2
+                || Math.sqrt(occupancyVariance) > maxOccupancyDeviation * meanOccupancy;
+    }
+
+    /**
+     * Rebuilds the tree in place with median splits, which gives a balanced
+     * tree with leaves between half and fully occupied. Eviction order is kept.
+     */
+    public void rebuild() {
+        int count = this.locationCount;
+        float[] allPoints = new float[count * dimensions];
+        Object[] allData = new Object[count];
+        int[] allSlots = new int[count];
+        if (this.slotLeaves != null) {
+            // Gather in age order from the ring buffer
+            for (int j = 0; j < count; j++) {
+                int slot = (this.oldestSlot + j) % this.slotLeaves.length;
+                KdTree<T> leaf = this.slotLeaves[slot];
+                int i = this.slotIndices[slot];
+                System.arraycopy(leaf.points, i * dimensions, allPoints, j * dimensions, dimensions);
+                allData[j] = leaf.data[i];
+                allSlots[j] = slot;
+            }
+        } else {
+            this.gather(allPoints, allData, 0);
+        }
+
+        int[] order = new int[count];
+        for (int j = 0; j < count; j++) {
+            order[j] = j;
+        }
+        this.build(this, allPoints, allData, allSlots, order, new double[count], 0, count);
+        this.insertsSinceCheck = 0;
+    }
+
+    /**
+     * Copies this subtree's points into the given arrays starting at index j.
+     * Returns the index after the last copied point.
+     */
+    private int gather(float[] allPoints, Object[] allData, int j) {
+        if (points == null) {
+            return right.gather(allPoints, allData, left.gather(allPoints, allData, j));
+        }
+        System.arraycopy(points, 0, allPoints, j * dimensions, locationCount * dimensions);
+        System.arraycopy(data, 0, allData, j, locationCount);
+        return j + locationCount;
+    }
+
+    /**
+     * Turns this node into a balanced subtree holding the points order[lo..hi).
+     * keys is scratch space for the coordinates along the split dimension.
+     */
+    private void build(KdTree<T> root, float[] allPoints, Object[] allData, int[] allSlots, int[] order,
+            double[] keys, int lo, int hi) {
+        int count = hi - lo;
+        if (count > bucketSize) {
+            minLimit = null;
+            maxLimit = null;
+            singularity = true;
+            for (int j = lo; j < hi; j++) {
+                extendBounds(allPoints, order[j] * dimensions);
+            }
+            int dim = findWidestAxis();
+
+            // Otherwise all points are identical and go into one big leaf
+            if (minLimit[dim] < maxLimit[dim]) {
+                for (int j = lo; j < hi; j++) {
+                    keys[j] = allPoints[order[j] * dimensions + dim];
+                }
+                int mid = lo + count / 2;
+                select(keys, order, lo, hi, mid);
+                double split = keys[mid];
+                int cut = partition(keys, order, lo, hi, split);
+                if (cut == hi) {
+                    // The median is the maximum, so slide the plane down to the next value
+                    split = Double.NEGATIVE_INFINITY;
+                    for (int j = lo; j < hi; j++) {
+                        if (keys[j] < maxLimit[dim] && keys[j] > split) {
+                            split = keys[j];
+                        }
+                    }
+                    cut = partition(keys, order, lo, hi, split);
+                }
+
+                splitDimension = dim;
+                splitValue = split;
+                points = null;
+                data = null;
+                slots = null;
+                locationCount = count;
+                left = new ChildNode(this, 0);
+                right = new ChildNode(this, 0);
+                left.build(root, allPoints, allData, allSlots, order, keys, lo, cut);
+                right.build(root, allPoints, allData, allSlots, order, keys, cut, hi);
+                return;
             }
         }
 
-        for (int i = 0; i < cursor.locationCount; i++) {
-            if (cursor.locations[i] == location) {
-                System.arraycopy(cursor.locations, i + 1, cursor.locations, i, cursor.locationCount - i - 1);
-                cursor.locations[cursor.locationCount - 1] = null;
-                System.arraycopy(cursor.data, i + 1, cursor.data, i, cursor.locationCount - i - 1);
-                cursor.data[cursor.locationCount - 1] = null;
-                do {
-                    cursor.locationCount--;
-                    cursor = cursor.parent;
-                } while (cursor != null && cursor.parent != null);
+        initLeaf(Math.max(bucketSize, count));
+        for (int j = lo; j < hi; j++) {
+            int k = order[j];
+            root.trackSlot(this, appendPoint(allPoints, k * dimensions, allData[k], allSlots[k]));
+        }
+    }
+
+    /**
+     * Reorders keys[lo..hi) (and order alongside it) so keys[k] is the k-th
+     * smallest key (quickselect)
+     */
+    private static void select(double[] keys, int[] order, int lo, int hi, int k) {
+        hi--;
+        while (hi > lo) {
+            double pivot = keys[(lo + hi) >>> 1];
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (keys[i] < pivot) i++;
+                while (keys[j] > pivot) j--;
+                if (i <= j) {
+                    swap(keys, order, i, j);
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
                 return;
             }
         }
-        // If we got here... we couldn't find the value to remove. Weird...
+    }
+
+    /**
+     * Moves keys at or below the split value to the front of keys[lo..hi)
+     * (and order alongside it), matching how addPoint routes points. Returns
+     * the index of the first key above it.
+     */
+    private static int partition(double[] keys, int[] order, int lo, int hi, double split) {
+        int cut = lo;
+        for (int j = lo; j < hi; j++) {
+            if (!(keys[j] > split)) {
+                swap(keys, order, cut, j);
+                cut++;
+            }
+        }
+        return cut;
+    }
+
+    private static void swap(double[] keys, int[] order, int i, int j) {
+        double key = keys[i];
+        keys[i] = keys[j];
+        keys[j] = key;
+        int k = order[i];
+        order[i] = order[j];
+        order[j] = k;
     }
 
     /**
@@ -285,15 +674,54 @@ public abstract class KdTree<T> {
         }
     }
 
+    /**
+     * Accumulates the cost of nearest neighbor queries
+     */
+    public static class QueryStats {
+        public long queries;
+        public long nodesVisited;
+        public long leavesScanned;
+        public long distances;
+        public long heapReplacements;
+        public long nanos;
+
+        public void record(int nodes, int leaves, int dists, int replacements, long elapsed) {
+            queries++;
+            nodesVisited += nodes;
+            leavesScanned += leaves;
+            distances += dists;
+            heapReplacements += replacements;
+            nanos += elapsed;
+        }
+
+        @Override
+        public String toString() {
+            double n = Math.max(1, queries);
+            return String.format("%d queries, per query: %.1f nodes, %.1f leaves, %.1f distances, "
+                    + "%.1f heap replacements, %.1f us", queries, nodesVisited / n, leavesScanned / n,
+                    distances / n, heapReplacements / n, nanos / n / 1000);
+        }
+    }
+
     /**
      * Calculates the nearest 'count' points to 'location'
      */
-    @SuppressWarnings("unchecked")
     public List<Entry<T>> nearestNeighbor(double[] location, int count, boolean sequentialSorting) {
+        ResultHeap resultHeap = new ResultHeap(count);
+        this.nearestNeighbor(location, resultHeap);
+        return resultHeap.getEntries(sequentialSorting);
+    }
+
+    /**
+     * Fills 'resultHeap' with the nearest points to 'location', as many as it
+     * was sized for. Allocates nothing, so a heap can be reused across queries.
+     */
+    public void nearestNeighbor(double[] location, ResultHeap resultHeap) {
+        long startTime = stats == null ? 0 : System.nanoTime();
+        int nodes = 1, leaves = 0, dists = 0;
         KdTree<T> cursor = this;
         cursor.status = Status.NONE;
-        double range = Double.POSITIVE_INFINITY;
-        ResultHeap resultHeap = new ResultHeap(count);
+        double range = resultHeap.getMaxDist();
 
         do {
             if (cursor.status == Status.ALLVISITED) {
@@ -302,20 +730,23 @@ public abstract class KdTree<T> {
                 continue;
             }
 
-            if (cursor.status == Status.NONE && cursor.locations != null) {
+            if (cursor.status == Status.NONE && cursor.points != null) {
                 // At a leaf. Use the data.
                 if (cursor.locationCount > 0) {
+                    leaves++;
                     if (cursor.singularity) {
-                        double dist = pointDist(cursor.locations[0], location);
+                        dists++;
+                        double dist = pointDist(cursor.points, 0, location);
                         if (dist <= range) {
                             for (int i = 0; i < cursor.locationCount; i++) {
-                                resultHeap.addValue(dist, cursor.data[i]);
+                                this.addResult(resultHeap, dist, cursor, i);
                             }
                         }
                     } else {
+                        dists += cursor.locationCount;
                         for (int i = 0; i < cursor.locationCount; i++) {
-                            double dist = pointDist(cursor.locations[i], location);
-                            resultHeap.addValue(dist, cursor.data[i]);
+                            double dist = pointDist(cursor.points, i * dimensions, location);
+                            this.addResult(resultHeap, dist, cursor, i);
                         }
                     }
                     range = resultHeap.getMaxDist();
@@ -356,7 +787,7 @@ public abstract class KdTree<T> {
             if (cursor.status == Status.ALLVISITED) {
                 if (nextCursor.locationCount == 0
                         || (!nextCursor.singularity && pointRegionDist(location, nextCursor.minLimit,
-                        nextCursor.maxLimit) > range)) {
+                        nextCursor.maxLimit) * approximation > range)) {
                     continue;
                 }
             }
@@ -364,27 +795,359 @@ public abstract class KdTree<T> {
             // Descend down the tree
             cursor = nextCursor;
             cursor.status = Status.NONE;
+            nodes++;
         } while (cursor.parent != null || cursor.status != Status.ALLVISITED);
 
-        ArrayList<Entry<T>> results = new ArrayList<Entry<T>>(resultHeap.values);
-        if (sequentialSorting) {
-            while (resultHeap.values > 0) {
-                resultHeap.removeLargest();
-                results.add(new Entry<T>(resultHeap.removedDist, (T) resultHeap.removedData));
+        if (stats != null) {
+            stats.record(nodes, leaves, dists, resultHeap.replacements, System.nanoTime() - startTime);
+        }
+    }
+
+    /**
+     * Calculates the nearest 'counts[q]' points to each 'locations[q]' in one
+     * traversal, which only skips a subtree once it is too far from every
+     * location. Returns the (unordered) entries for each location.
+     */
+    public List<List<Entry<T>>> nearestNeighborBatch(double[][] locations, int[] counts) {
+        ResultHeap[] resultHeaps = new ResultHeap[locations.length];
+        for (int q = 0; q < locations.length; q++) {
+            resultHeaps[q] = new ResultHeap(counts[q]);
+        }
+        this.nearestNeighborBatch(locations, resultHeaps);
+
+        List<List<Entry<T>>> results = new ArrayList<List<Entry<T>>>(locations.length);
+        for (ResultHeap resultHeap : resultHeaps) {
+            results.add(resultHeap.<T>getEntries(false));
+        }
+        return results;
+    }
+
+    /**
+     * Fills each 'resultHeaps[q]' with the nearest points to 'locations[q]'
+     * in one traversal. Reuses scratch space kept by the root, so this only
+     * allocates when given more locations or a deeper tree than before.
+     */
+    public void nearestNeighborBatch(double[][] locations, ResultHeap[] resultHeaps) {
+        int[] active = this.batchScratch(0, locations.length);
+        for (int q = 0; q < locations.length; q++) {
+            active[q] = q;
+        }
+        this.descendBatch(this, locations, resultHeaps, active, locations.length, 1);
+    }
+
+    /**
+     * Returns the root's scratch array for the given depth of a batched search
+     */
+    private int[] batchScratch(int depth, int length) {
+        if (batchScratch == null || batchScratch.length <= depth) {
+            batchScratch = batchScratch == null ? new int[16][] : Arrays.copyOf(batchScratch, 2 * depth);
+        }
+        if (batchScratch[depth] == null || batchScratch[depth].length < length) {
+            batchScratch[depth] = new int[length];
+        }
+        return batchScratch[depth];
+    }
+
+    /**
+     * Visits this node with the active locations whose current range still
+     * reaches it
+     */
+    private void descendBatch(KdTree<T> root, double[][] locations, ResultHeap[] resultHeaps, int[] active,
+            int activeCount, int depth) {
+        if (locationCount == 0) {
+            return;
+        }
+        int[] reaching = root.batchScratch(depth, activeCount);
+        int reachingCount = 0;
+        for (int a = 0; a < activeCount; a++) {
+            int q = active[a];
+            if (singularity
+                    || root.pointRegionDist(locations[q], minLimit, maxLimit) * root.approximation
+                    <= resultHeaps[q].getMaxDist()) {
+                reaching[reachingCount++] = q;
             }
-        } else {
-            for (int i = 0; i < resultHeap.values; i++) {
-                results.add(new Entry<T>(resultHeap.distance[i], (T) resultHeap.data[i]));
+        }
+        if (reachingCount == 0) {
+            return;
+        }
+
+        if (points == null) {
+            // Descend first to the side most locations are on
+            int rightCount = 0;
+            for (int a = 0; a < reachingCount; a++) {
+                if (locations[reaching[a]][splitDimension] > splitValue) {
+                    rightCount++;
+                }
+            }
+            KdTree<T> first = 2 * rightCount > reachingCount ? right : left;
+            KdTree<T> second = first == right ? left : right;
+            first.descendBatch(root, locations, resultHeaps, reaching, reachingCount, depth + 1);
+            second.descendBatch(root, locations, resultHeaps, reaching, reachingCount, depth + 1);
+            return;
+        }
+
+        for (int a = 0; a < reachingCount; a++) {
+            double[] location = locations[reaching[a]];
+            ResultHeap resultHeap = resultHeaps[reaching[a]];
+            if (singularity) {
+                double dist = root.pointDist(points, 0, location);
+                if (dist <= resultHeap.getMaxDist()) {
+                    for (int i = 0; i < locationCount; i++) {
+                        root.addResult(resultHeap, dist, this, i);
+                    }
+                }
+            } else {
+                for (int i = 0; i < locationCount; i++) {
+                    root.addResult(resultHeap, root.pointDist(points, i * dimensions, location), this, i);
+                }
             }
         }
+    }
 
+    /**
+     * Finds all points within 'radius' of 'location' (unordered)
+     */
+    public List<Entry<T>> rangeSearch(double[] location, double radius) {
+        List<Entry<T>> results = new ArrayList<Entry<T>>();
+        this.rangeSearch(this, location, radius, results);
         return results;
     }
 
+    private void rangeSearch(KdTree<T> root, double[] location, double radius, List<Entry<T>> results) {
+        if (locationCount == 0 || root.pointRegionDist(location, minLimit, maxLimit) > radius) {
+            return;
+        }
+        if (points == null) {
+            left.rangeSearch(root, location, radius, results);
+            right.rangeSearch(root, location, radius, results);
+        } else if (singularity) {
+            double dist = root.pointDist(points, 0, location);
+            if (dist <= radius) {
+                for (int i = 0; i < locationCount; i++) {
+                    results.add(new Entry<T>(dist, root.valueOf(this, i)));
+                }
+            }
+        } else {
+            for (int i = 0; i < locationCount; i++) {
+                double dist = root.pointDist(points, i * dimensions, location);
+                if (dist <= radius) {
+                    results.add(new Entry<T>(dist, root.valueOf(this, i)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Counts the points within 'radius' of 'location'. Nodes whose bounds lie
+     * entirely within the radius are counted without visiting their points.
+     */
+    public int countWithin(double[] location, double radius) {
+        return this.countWithin(this, location, radius);
+    }
+
+    private int countWithin(KdTree<T> root, double[] location, double radius) {
+        if (locationCount == 0 || root.pointRegionDist(location, minLimit, maxLimit) > radius) {
+            return 0;
+        }
+        if (root.pointRegionMaxDist(location, minLimit, maxLimit) <= radius) {
+            return locationCount;
+        }
+        if (points == null) {
+            return left.countWithin(root, location, radius) + right.countWithin(root, location, radius);
+        }
+        int count = 0;
+        for (int i = 0; i < locationCount; i++) {
+            if (root.pointDist(points, i * dimensions, location) <= radius) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Starts a best-first search from 'location' that yields points in order
+     * of increasing distance and can be resumed to fetch more. The iterator is
+     * only valid until the tree is next modified.
+     */
+    public NeighborIterator<T> nearestNeighborIterator(double[] location) {
+        return new NeighborIterator<T>(this, location);
+    }
+
+    /**
+     * Yields the points of a tree in order of increasing distance to a
+     * location. Pending nodes (keyed by their distance to the location) and
+     * the points of opened leaves share one min-heap, so a node is only opened
+     * once it is nearer than every point not yet returned. In approximate
+     * mode nodes are keyed by their distance times 1 + epsilon, so points are
+     * returned once no unopened node could hold one that much nearer. Points are kept as
+     * their leaf and index within it, so payloads can be read without boxing.
+     */
+    public static class NeighborIterator<T> {
+        private final KdTree<T> root;
+        private double[] location;
+        private Object[] items = new Object[64];
+        private double[] keys = new double[64];
+        private boolean[] isNode = new boolean[64];
+        private int[] indices = new int[64];
+        private int count;
+        private double distance;
+        private KdTree<T> leaf;
+        private int index;
+
+        private NeighborIterator(KdTree<T> root, double[] location) {
+            this.root = root;
+            this.location = location;
+            this.pushNode(root);
+        }
+
+        /**
+         * Starts over from 'location' in the tree as it is now, reusing this
+         * iterator's arrays
+         */
+        public void restart(double[] location) {
+            Arrays.fill(items, 0, count, null);
+            this.location = location;
+            this.count = 0;
+            this.leaf = null;
+            this.pushNode(root);
+        }
+
+        public boolean hasNext() {
+            this.advance();
+            return count > 0;
+        }
+
+        /**
+         * Returns the next nearest point; its distance is then available from
+         * getDistance()
+         */
+        public T next() {
+            this.step();
+            return root.valueOf(leaf, index);
+        }
+
+        /**
+         * Moves to the next nearest point without returning its value, whose
+         * distance and payload are then available from getDistance() and
+         * getPayload()
+         */
+        @SuppressWarnings("unchecked")
+        public void step() {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            leaf = (KdTree<T>) items[0];
+            index = indices[0];
+            distance = keys[0];
+            this.pop();
+        }
+
+        /**
+         * Get the j-th payload column of the point last returned, in a tree
+         * that stores payloads
+         */
+        public double getPayload(int j) {
+            return root.payloads[leaf.slots[index] * root.payloadWidth + j];
+        }
+
+        /**
+         * Get the distance of the point last returned by next()
+         */
+        public double getDistance() {
+            return distance;
+        }
+
+        /**
+         * Opens nodes until the top of the heap is a point
+         */
+        @SuppressWarnings("unchecked")
+        private void advance() {
+            while (count > 0 && isNode[0]) {
+                KdTree<T> node = (KdTree<T>) items[0];
+                this.pop();
+                if (node.points == null) {
+                    this.pushNode(node.left);
+                    this.pushNode(node.right);
+                } else if (node.singularity) {
+                    double dist = root.pointDist(node.points, 0, location);
+                    for (int i = 0; i < node.locationCount; i++) {
+                        this.push(node, i, dist, false);
+                    }
+                } else {
+                    for (int i = 0; i < node.locationCount; i++) {
+                        this.push(node, i, root.pointDist(node.points, i * root.dimensions, location), false);
+                    }
+                }
+            }
+        }
+
+        private void pushNode(KdTree<T> node) {
+            if (node.locationCount > 0) {
+                double dist = root.pointRegionDist(location, node.minLimit, node.maxLimit);
+                this.push(node, 0, dist * root.approximation, true);
+            }
+        }
+
+        private void push(KdTree<T> item, int index, double key, boolean node) {
+            if (count == items.length) {
+                items = Arrays.copyOf(items, 2 * count);
+                keys = Arrays.copyOf(keys, 2 * count);
+                isNode = Arrays.copyOf(isNode, 2 * count);
+                indices = Arrays.copyOf(indices, 2 * count);
+            }
+            int i = count++;
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (keys[parent] <= key) {
+                    break;
+                }
+                this.move(parent, i);
+                i = parent;
+            }
+            items[i] = item;
+            keys[i] = key;
+            isNode[i] = node;
+            indices[i] = index;
+        }
+
+        private void pop() {
+            count--;
+            Object item = items[count];
+            double key = keys[count];
+            boolean node = isNode[count];
+            int itemIndex = indices[count];
+            items[count] = null;
+            int i = 0;
+            while (2 * i + 1 < count) {
+                int child = 2 * i + 1;
+                if (child + 1 < count && keys[child + 1] < keys[child]) {
+                    child++;
+                }
+                if (key <= keys[child]) {
+                    break;
+                }
+                this.move(child, i);
+                i = child;
+            }
+            if (count > 0) {
+                items[i] = item;
+                keys[i] = key;
+                isNode[i] = node;
+                indices[i] = itemIndex;
+            }
+        }
+
+        private void move(int from, int to) {
+            items[to] = items[from];
+            keys[to] = keys[from];
+            isNode[to] = isNode[from];
+            indices[to] = indices[from];
+        }
+    }
+
     /**
      * Calculates the farthest 'count' points to 'location'.
      */
-    @SuppressWarnings("unchecked")
     public List<Entry<T>> farthestNeighbor(double[] location, int count, boolean sequentialSorting) {
         return farthestNeighbor(location, count, sequentialSorting, Double.POSITIVE_INFINITY);
     }
@@ -402,20 +1165,20 @@ public abstract class KdTree<T> {
                 continue;
             }
 
-            if (cursor.status == Status.NONE && cursor.locations != null) {
+            if (cursor.status == Status.NONE && cursor.points != null) {
                 // At a leaf. Use the data.
                 if (cursor.locationCount > 0) {
                     if (cursor.singularity) {
-                        double dist = pointDist(cursor.locations[0], location);
+                        double dist = pointDist(cursor.points, 0, location);
                         if (dist >= range) {
                             for (int i = 0; i < cursor.locationCount; i++) {
-                                resultHeap.addValue(dist, cursor.data[i]);
+                                this.addResult(resultHeap, dist, cursor, i);
                             }
                         }
                     } else {
                         for (int i = 0; i < cursor.locationCount; i++) {
-                            double dist = pointDist(cursor.locations[i], location);
-                            resultHeap.addValue(dist, cursor.data[i]);
+                            double dist = pointDist(cursor.points, i * dimensions, location);
+                            this.addResult(resultHeap, dist, cursor, i);
                         }
                     }
                     range = resultHeap.getMaxDist();
@@ -469,24 +1232,14 @@ public abstract class KdTree<T> {
             cursor.status = Status.NONE;
         } while (cursor.parent != null || cursor.status != Status.ALLVISITED);
 
-        ArrayList<Entry<T>> results = new ArrayList<Entry<T>>(resultHeap.values);
-        if (sequentialSorting) {
-            while (resultHeap.values > 0) {
-                resultHeap.removeLargest();
-                results.add(new Entry<T>(resultHeap.removedDist, (T) resultHeap.removedData));
-            }
-        } else {
-            for (int i = 0; i < resultHeap.values; i++) {
-                results.add(new Entry<T>(resultHeap.distance[i], (T) resultHeap.data[i]));
-            }
-        }
-
-        return results;
+        return resultHeap.getEntries(sequentialSorting);
     }
 
     // Override in subclasses
     public abstract double pointDist(double[] p1, double[] p2);
 
+    protected abstract double pointDist(float[] points, int offset, double[] location);
+
     protected abstract double pointRegionDist(double[] point, double[] min, double[] max);
 
     protected abstract double pointRegionMaxDist(double[] point, double[] min, double[] max);
@@ -503,12 +1256,21 @@ public abstract class KdTree<T> {
             super(parent, right);
         }
 
+        private ChildNode(KdTree<T> parent, int capacity) {
+            super(parent, capacity);
+        }
+
         // Distance measurements are always called from the root node
         @Override
         public double pointDist(double[] p1, double[] p2) {
             throw new IllegalStateException();
         }
 
+        @Override
+        protected double pointDist(float[] points, int offset, double[] location) {
+            throw new IllegalStateException();
+        }
+
         @Override
         protected double pointRegionDist(double[] point, double[] min, double[] max) {
             throw new IllegalStateException();
@@ -555,6 +1317,20 @@ public abstract class KdTree<T> {
             return d;
         }
 
+        @Override
+        protected double pointDist(float[] points, int offset, double[] location) {
+            double d = 0;
+
+            for (int i = 0; i < location.length; i++) {
+                double diff = (points[offset + i] - location[i]) * weights[i];
+                if (!Double.isNaN(diff)) {
+                    d += diff * diff;
+                }
+            }
+
+            return d;
+        }
+
         @Override
         protected double pointRegionDist(double[] point, double[] min, double[] max) {
             double d = 0;
@@ -614,6 +1390,20 @@ public abstract class KdTree<T> {
             return d;
         }
 
+        @Override
+        protected double pointDist(float[] points, int offset, double[] location) {
+            double d = 0;
+
+            for (int i = 0; i < location.length; i++) {
+                double diff = (points[offset + i] - location[i]);
+                if (!Double.isNaN(diff)) {
+                    d += diff * diff;
+                }
+            }
+
+            return d;
+        }
+
         @Override
         protected double pointRegionDist(double[] point, double[] min, double[] max) {
             double d = 0;
@@ -675,6 +1465,20 @@ public abstract class KdTree<T> {
             return d;
         }
 
+        @Override
+        protected double pointDist(float[] points, int offset, double[] location) {
+            double d = 0;
+
+            for (int i = 0; i < location.length; i++) {
+                double diff = (points[offset + i] - location[i]);
+                if (!Double.isNaN(diff)) {
+                    d += ((diff < 0) ? -diff : diff) * weights[i];
+                }
+            }
+
+            return d;
+        }
+
         @Override
         protected double pointRegionDist(double[] point, double[] min, double[] max) {
             double d = 0;
@@ -709,6 +1513,10 @@ public abstract class KdTree<T> {
             super(dimensions, sizeLimit);
         }
 
+        public Manhattan(int dimensions, int sizeLimit, int payloadWidth) {
+            super(dimensions, sizeLimit, payloadWidth);
+        }
+
         @Override
         public double pointDist(double[] p1, double[] p2) {
             double d = 0;
@@ -723,6 +1531,20 @@ public abstract class KdTree<T> {
             return d;
         }
 
+        @Override
+        protected double pointDist(float[] points, int offset, double[] location) {
+            double d = 0;
+
+            for (int i = 0; i < location.length; i++) {
+                double diff = (points[offset + i] - location[i]);
+                if (!Double.isNaN(diff)) {
+                    d += (diff < 0) ? -diff : diff;
+                }
+            }
+
+            return d;
+        }
+
         @Override
         protected double pointRegionDist(double[] point, double[] min, double[] max) {
             double d = 0;
@@ -745,44 +1567,180 @@ public abstract class KdTree<T> {
 
         @Override
         protected double pointRegionMaxDist(double[] point, double[] min, double[] max) {
-            throw new IllegalStateException();
+            double d = 0;
+
+            for (int i = 0; i < point.length; i++) {
+                if (Double.isNaN(point[i])) {
+                    continue;
+                }
+                double diff = Math.max(point[i] - min[i], max[i] - point[i]);
+                if (Double.isNaN(diff)) {
+                    // Some points are NaN along this axis, so the bounds don't hold them
+                    return Double.POSITIVE_INFINITY;
+                }
+                d += diff;
+            }
+
+            return d;
         }
     }
 
     /**
-     * Class for tracking up to 'size' closest values
+     * Class for tracking up to 'size' closest values. A heap with a payload
+     * width also keeps a row of that many doubles per value, which trees that
+     * store payloads fill in instead of boxing them.
      */
-    private static class ResultHeap {
-        protected final Object[] data;
-        protected final double[] distance;
-        protected final int size;
+    public static class ResultHeap {
+        protected Object[] data;
+        protected double[] distance;
+        protected double[] payloads;
+        protected final int payloadWidth;
+        protected int size;
         protected int values;
         public Object removedData;
         public double removedDist;
+        public int replacements;
 
         public ResultHeap(int size) {
+            this(size, 0);
+        }
+
+        public ResultHeap(int size, int payloadWidth) {
             this.data = new Object[size];
             this.distance = new double[size];
+            this.payloadWidth = payloadWidth;
+            this.payloads = new double[size * payloadWidth];
+            this.size = size;
+            this.values = 0;
+        }
+
+        /**
+         * Empties the heap so it can be reused to hold up to 'size' values,
+         * growing its arrays only if they are too small
+         */
+        public void reset(int size) {
+            if (data.length < size) {
+                data = new Object[size];
+                distance = new double[size];
+                payloads = new double[size * payloadWidth];
+            }
             this.size = size;
             this.values = 0;
+            this.replacements = 0;
+        }
+
+        public int getCount() {
+            return values;
+        }
+
+        /**
+         * Get the number of values the heap was sized to hold
+         */
+        public int getMaxCount() {
+            return size;
+        }
+
+        public int getPayloadWidth() {
+            return payloadWidth;
+        }
+
+        public double getDistance(int i) {
+            return distance[i];
+        }
+
+        @SuppressWarnings("unchecked")
+        public <T> T getValue(int i) {
+            return (T) data[i];
+        }
+
+        /**
+         * Get the j-th payload column of the i-th value
+         */
+        public double getPayload(int i, int j) {
+            return payloads[i * payloadWidth + j];
+        }
+
+        /**
+         * Drops the values farther than 'maxDist'
+         */
+        public void retainWithin(double maxDist) {
+            int kept = 0;
+            for (int i = 0; i < values; i++) {
+                if (distance[i] <= maxDist) {
+                    move(i, kept);
+                    kept++;
+                }
+            }
+            values = kept;
+            for (int p = values / 2 - 1; p >= 0; p--) {
+                downHeapify(p);
+            }
         }
 
         public void addValue(double dist, Object value) {
+            int i = offer(dist);
+            if (i >= 0) {
+                data[i] = value;
+                settle(i);
+            }
+        }
+
+        /**
+         * Adds a value whose payload is source[offset..offset + width). Heaps
+         * with a different payload width get a copy of it as the value instead.
+         */
+        public void addValue(double dist, double[] source, int offset, int width) {
+            int i = offer(dist);
+            if (i >= 0) {
+                if (width != payloadWidth) {
+                    data[i] = Arrays.copyOfRange(source, offset, offset + width);
+                } else {
+                    data[i] = null;
+                    System.arraycopy(source, offset, payloads, i * payloadWidth, payloadWidth);
+                }
+                settle(i);
+            }
+        }
+
+        /**
+         * Adds the i-th value of another heap with the same payload width
+         */
+        public void addValue(ResultHeap from, int i) {
+            if (from.data[i] != null || from.payloadWidth == 0) {
+                addValue(from.distance[i], from.data[i]);
+            } else {
+                addValue(from.distance[i], from.payloads, i * from.payloadWidth, from.payloadWidth);
+            }
+        }
+
+        /**
+         * Makes room for a value at the given distance if it belongs in the
+         * heap. Returns the index where its value should be written before it
+         * is settled into place, or -1 if it doesn't belong.
+         */
+        protected int offer(double dist) {
             // If there is still room in the heap
             if (values < size) {
                 // Insert new value at the end
-                data[values] = value;
                 distance[values] = dist;
-                upHeapify(values);
-                values++;
+                return values++;
             }
             // If there is no room left in the heap, and the new entry is lower
             // than the max entry
             else if (dist < distance[0]) {
                 // Replace the max entry with the new entry
-                data[0] = value;
                 distance[0] = dist;
+                replacements++;
+                return 0;
+            }
+            return -1;
+        }
+
+        private void settle(int i) {
+            if (i == 0) {
                 downHeapify(0);
+            } else {
+                upHeapify(i);
             }
         }
 
@@ -791,22 +1749,26 @@ public abstract class KdTree<T> {
                 throw new IllegalStateException();
             }
 
-            removedData = data[0];
+            removedData = valueAt(0);
             removedDist = distance[0];
             values--;
-            data[0] = data[values];
-            distance[0] = distance[values];
+            move(values, 0);
             downHeapify(0);
         }
 
+        /**
+         * Returns the i-th value, or a copy of its payload if it only has one
+         */
+        private Object valueAt(int i) {
+            if (data[i] != null || payloadWidth == 0) {
+                return data[i];
+            }
+            return Arrays.copyOfRange(payloads, i * payloadWidth, (i + 1) * payloadWidth);
+        }
+
         protected void upHeapify(int c) {
             for (int p = (c - 1) / 2; c != 0 && distance[c] > distance[p]; c = p, p = (c - 1) / 2) {
-                Object pData = data[p];
-                double pDist = distance[p];
-                data[p] = data[c];
-                distance[p] = distance[c];
-                data[c] = pData;
-                distance[c] = pDist;
+                swap(p, c);
             }
         }
 
@@ -817,24 +1779,60 @@ public abstract class KdTree<T> {
                 }
                 if (distance[p] < distance[c]) {
                     // Swap the points
-                    Object pData = data[p];
-                    double pDist = distance[p];
-                    data[p] = data[c];
-                    distance[p] = distance[c];
-                    data[c] = pData;
-                    distance[c] = pDist;
+                    swap(p, c);
                 } else {
                     break;
                 }
             }
         }
 
+        protected final void swap(int p, int c) {
+            Object pData = data[p];
+            double pDist = distance[p];
+            data[p] = data[c];
+            distance[p] = distance[c];
+            data[c] = pData;
+            distance[c] = pDist;
+            for (int j = 0, pj = p * payloadWidth, cj = c * payloadWidth; j < payloadWidth; j++) {
+                double pPayload = payloads[pj + j];
+                payloads[pj + j] = payloads[cj + j];
+                payloads[cj + j] = pPayload;
+            }
+        }
+
+        private void move(int from, int to) {
+            data[to] = data[from];
+            distance[to] = distance[from];
+            System.arraycopy(payloads, from * payloadWidth, payloads, to * payloadWidth, payloadWidth);
+        }
+
         public double getMaxDist() {
             if (values < size) {
                 return Double.POSITIVE_INFINITY;
             }
             return distance[0];
         }
+
+        /**
+         * Returns the values as entries (payloads as double[]s). Sequential
+         * sorting empties the heap and lists the entries from largest to
+         * smallest distance.
+         */
+        @SuppressWarnings("unchecked")
+        public <T> List<Entry<T>> getEntries(boolean sequentialSorting) {
+            ArrayList<Entry<T>> results = new ArrayList<Entry<T>>(values);
+            if (sequentialSorting) {
+                while (values > 0) {
+                    removeLargest();
+                    results.add(new Entry<T>(removedDist, (T) removedData));
+                }
+            } else {
+                for (int i = 0; i < values; i++) {
+                    results.add(new Entry<T>(distance[i], (T) valueAt(i)));
+                }
+            }
+            return results;
+        }
     }
 
     private static class ReverseResultHeap extends ResultHeap {
@@ -843,35 +1841,29 @@ public abstract class KdTree<T> {
         }
 
         @Override
-        public void addValue(double dist, Object value) {
+        protected int offer(double dist) {
             // If there is still room in the heap
             if (values < size) {
                 // Insert new value at the end
-                data[values] = value;
                 distance[values] = dist;
-                upHeapify(values);
-                values++;
+                return values++;
             }
             // If there is no room left in the heap, and the new entry is higher
             // than the min entry
             else if (dist > distance[0]) {
                 // Replace the min entry with the new entry
-                data[0] = value;
                 distance[0] = dist;
-                downHeapify(0);
+                replacements++;
+                return 0;
             }
+            return -1;
         }
 
 
         @Override
         protected void upHeapify(int c) {
             for (int p = (c - 1) / 2; c != 0 && distance[c] < distance[p]; c = p, p = (c - 1) / 2) {
-                Object pData = data[p];
-                double pDist = distance[p];
-                data[p] = data[c];
-                distance[p] = distance[c];
-                data[c] = pData;
-                distance[c] = pDist;
+                swap(p, c);
             }
         }
 
@@ -883,12 +1875,7 @@ public abstract class KdTree<T> {
                 }
                 if (distance[p] > distance[c]) {
                     // Swap the points
-                    Object pData = data[p];
-                    double pDist = distance[p];
-                    data[p] = data[c];
-                    distance[p] = distance[c];
-                    data[c] = pData;
-                    distance[c] = pDist;
+                    swap(p, c);
                 } else {
                     break;
                 }
@@ -7,6 +7,8 @@ import kc.mega.aim.Aimer;
 import kc.mega.game.BattleField;
 import kc.mega.game.GameState;
 import kc.mega.game.Physics;
+import kc.mega.model.MemoryBudget;
+import kc.mega.model.Model;
 import kc.mega.move.Mover;
 import kc.mega.scan.Scanner;
 import kc.mega.shared.Strategy;
@@ -73,6 +75,7 @@ public class BeepBoop extends AdvancedRobot {
     waveManager = new WaveManager();
     strategy = new Strategy(this, gs, waveManager, !TC && !MC && SHIELD);
     scanner = new Scanner(this, gs);
+    Model.trackQueryCosts = VERBOSE;
     mover = new Mover(this, strategy);
     aimer = new Aimer(this, strategy, mover, TC);
     shielder = new Shielder(this, gs, waveManager.movementWaves);
@@ -123,6 +126,7 @@ public class BeepBoop extends AdvancedRobot {
       scanner.search();
     }
     strategy.strategize();
+    MemoryBudget.INSTANCE.onTurn();
     if (strategy.shield) {
       shielder.shield();
     } else {
@@ -139,6 +143,8 @@ public class BeepBoop extends AdvancedRobot {
 
   private void onRoundEnd() {
     gs.onRoundEnd(hasWon);
+    aimer.flush();
+    mover.flush();
     if (!strategy.shield) {
       if (!MC) {
         aimer.printStats(VERBOSE);
@@ -146,6 +152,9 @@ public class BeepBoop extends AdvancedRobot {
       if (!TC) {
         mover.printStats(VERBOSE);
       }
+      if (VERBOSE) {
+        MemoryBudget.INSTANCE.printUsage();
+      }
     }
     System.out.println("Skipped Turns: " + skippedTurns);
     System.out.print("Finishes: ");
@@ -234,10 +234,17 @@ public class Aimer {
     }
   }
 
+  public void flush() {
+    antiRandomModel.flush();
+    antiSurferModel.flush();
+  }
+
   public void printStats(boolean verbose) {
     if (verbose) {
       System.out.println(String.format("Active Shadow Percent: %.2f",
           100.0 * shadowShots / (shadowShots + aimShots)));
+      antiRandomModel.printQueryStats();
+      antiSurferModel.printQueryStats();
     }
     System.out.println("My Hit Rate: " + gs.myHitRateTracker.getHitRateStr());
   }
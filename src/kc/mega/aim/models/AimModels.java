@@ -1,12 +1,11 @@
 package kc.mega.aim.models;
 
 import kc.mega.model.WaveKNN;
-import kc.mega.utils.Range;
 
 /** Two KNN models - one trained to hit wave surfers and one trained for other bots. */
 public class AimModels {
   public static KNNAimModel getMainModel() {
-    return new KNNAimModel("Main", new WaveKNN.Builder<Range>()
+    return new KNNAimModel("Main", new WaveKNN.Builder<double[]>()
         .features(new String[] {"power", "virtuality", "bft", "accel", "vel", "vel=8", "advDir", "dirChangeTimer", "decelTimer", "distanceLast20", "mirrorOffset", "maeWallAhead", "maeWallReverse", "stickWallAhead", "stickWallReverse", "stickWallAhead2", "stickWallReverse2", "stickWallAhead=0", "stickWallReverse=0", "shotsFired"})
         .params(new double[][] {
           {0.6451, 0.0221, 0.3791},
@@ -33,11 +32,12 @@ public class AimModels {
         .distanceScale(-0.6551)
         .neighborhoodSizeDivider(5.0)
         .maxNeighbors(200)
-        .maxTreeSize(50000).build());
+        .maxTreeSize(50000)
+        .payloads(2).build());
   }
 
   public static KNNAimModel getAntiSurferModel() {
-    return new KNNAimModel("AntiSurfer", new WaveKNN.Builder<Range>()
+    return new KNNAimModel("AntiSurfer", new WaveKNN.Builder<double[]>()
         .features(new String[] {"virtuality", "bft", "accel", "vel", "vel=8", "advDir", "dirChangeTimer", "decelTimer", "distanceLast10", "mirrorOffset", "maeWallAhead", "maeWallReverse", "stickWallAhead", "stickWallReverse", "stickWallAhead2", "didHit", "didCollide"})
         .params(new double[][] {
           {0.9153, 0.0360, 0.6818},
@@ -60,6 +60,7 @@ public class AimModels {
         .distanceScale(-0.8611)
         .neighborhoodSizeDivider(5.0)
         .maxNeighbors(100)
-        .maxTreeSize(50000).build());
+        .maxTreeSize(50000)
+        .payloads(2).build());
   }
 }
@@ -1,5 +1,6 @@
 package kc.mega.aim.models;
 
+import kc.mega.model.MemoryBudget;
 import kc.mega.model.Model;
 import kc.mega.model.WaveKNN;
 import kc.mega.utils.Painter;
@@ -14,16 +15,32 @@ import java.util.List;
 import java.util.PriorityQueue;
 import java.util.stream.Collectors;
 
-import ags.utils.KdTree.Entry;
+import ags.utils.KdTree.ResultHeap;
 
-/** KNN model for aiming; stores guessfactor ranges that would hit the opponent. */
+/**
+ * KNN model for aiming; stores guessfactor ranges that would hit the opponent as [start, end]
+ * payloads.
+ */
 public class KNNAimModel extends Model {
-  private final WaveKNN<Range> knn;
-  private VisitEdge[] edges;
-
-  public KNNAimModel(String name, WaveKNN<Range> knn) {
+  private final WaveKNN<double[]> knn;
+  // reused across queries to avoid garbage collection pauses; only the first numEdges are in use
+  private final ResultHeap neighbors;
+  private final double[] payload = new double[2];
+  private final VisitEdge probe = new VisitEdge(0, 0, 0);
+  private double[] weights = new double[0];
+  private VisitEdge[] edges = new VisitEdge[0];
+  private int numEdges;
+
+  public KNNAimModel(String name, WaveKNN<double[]> knn) {
     super(name);
+    // train() reuses one payload array, so the KNN has to copy it
+    if (knn.getPayloadWidth() != payload.length) {
+      throw new IllegalStateException(name + " needs a KNN with payloads(" + payload.length + ")");
+    }
     this.knn = knn;
+    neighbors = knn.newNeighborHeap();
+    knn.setStats(queryStats);
+    MemoryBudget.INSTANCE.register(name, knn);
   }
 
   public boolean hasData() {
@@ -32,7 +49,20 @@ public class KNNAimModel extends Model {
 
   @Override
   public void train(WaveWithFeatures w) {
-    knn.addPoint(w, w.hitGFRange());
+    Range hitGFRange = w.hitGFRange();
+    payload[0] = hitGFRange.start;
+    payload[1] = hitGFRange.end;
+    knn.addPoint(w, payload);
+  }
+
+  @Override
+  public void setMemoryPriority(double priority) {
+    MemoryBudget.INSTANCE.setPriority(knn, priority);
+  }
+
+  @Override
+  public void flush() {
+    knn.flush();
   }
 
   public double getAimGFFast(WaveWithFeatures w) {
@@ -40,27 +70,41 @@ public class KNNAimModel extends Model {
   }
 
   private double getAimGF(WaveWithFeatures w, int numNeighbors) {
-    List<Entry<Range>> neighbors = knn.getNeighbors(w, numNeighbors);
-    if (neighbors.isEmpty()) {
+    // the wave caches its neighbors, so a later getAimGFs() for it reuses getAimGFFast()'s search
+    knn.searchNeighbors(w, numNeighbors, neighbors);
+    int n = neighbors.getCount();
+    if (n == 0) {
       return 0;
     }
 
     // sorting-based algorithm for finding the highest density guessFactor
-    double[] weights = knn.getWeights(neighbors);
+    if (weights.length < n) {
+      weights = new double[n];
+    }
+    knn.getWeights(neighbors, weights);
     double totalWeight = 0;
-    edges = new VisitEdge[2 * neighbors.size()];
-    for (int i = 0; i < neighbors.size(); i++) {
-      Range GFRange = neighbors.get(i).value;
-      double midPoint = GFRange.middle();
-      edges[2 * i] = new VisitEdge(GFRange.start, midPoint, weights[i]);
-      edges[1 + 2 * i] = new VisitEdge(GFRange.end, midPoint, -weights[i]);
+    if (edges.length < 2 * n) {
+      int oldLength = edges.length;
+      edges = Arrays.copyOf(edges, 2 * n);
+      for (int i = oldLength; i < edges.length; i++) {
+        edges[i] = new VisitEdge(0, 0, 0);
+      }
+    }
+    numEdges = 2 * n;
+    for (int i = 0; i < n; i++) {
+      double start = neighbors.getPayload(i, 0), end = neighbors.getPayload(i, 1);
+      double midPoint = (start + end) / 2;
+      edges[2 * i].set(start, midPoint, weights[i]);
+      edges[2 * i].order = 2 * i;
+      edges[1 + 2 * i].set(end, midPoint, -weights[i]);
+      edges[1 + 2 * i].order = 1 + 2 * i;
       totalWeight += weights[i];
     }
-    Arrays.sort(edges);
+    sortEdges(0, numEdges - 1);
     double height = 0;
     double bestHeight = 0;
     int bestIndex = 0;
-    for (int i = 0; i < edges.length; i++) {
+    for (int i = 0; i < numEdges; i++) {
       height += edges[i].weight;
       edges[i].prob = height / totalWeight;
       if (height > bestHeight) {
@@ -71,9 +115,50 @@ public class KNNAimModel extends Model {
     return (edges[bestIndex].GF + edges[bestIndex + 1].GF) / 2;
   }
 
+  /**
+   * Sorts edges[lo..hi] by guessfactor in place (Arrays.sort allocates for object arrays). Ties
+   * keep the order the edges were added in, like the stable Arrays.sort did.
+   */
+  private void sortEdges(int lo, int hi) {
+    while (hi - lo > 16) {
+      VisitEdge pivot = edges[(lo + hi) >>> 1];
+      int i = lo, j = hi;
+      while (i <= j) {
+        while (before(edges[i], pivot)) i++;
+        while (before(pivot, edges[j])) j--;
+        if (i <= j) {
+          VisitEdge e = edges[i];
+          edges[i++] = edges[j];
+          edges[j--] = e;
+        }
+      }
+      // recurse into the smaller side to bound the stack depth
+      if (j - lo < hi - i) {
+        sortEdges(lo, j);
+        lo = i;
+      } else {
+        sortEdges(i, hi);
+        hi = j;
+      }
+    }
+    for (int i = lo + 1; i <= hi; i++) {
+      VisitEdge e = edges[i];
+      int j = i - 1;
+      while (j >= lo && before(e, edges[j])) {
+        edges[j + 1] = edges[j];
+        j--;
+      }
+      edges[j + 1] = e;
+    }
+  }
+
+  private static boolean before(VisitEdge e1, VisitEdge e2) {
+    return e1.GF < e2.GF || (e1.GF == e2.GF && e1.order < e2.order);
+  }
+
   public List<Double> getAimGFs(WaveWithFeatures w, int numAngles) {
     double bestGF = getAimGF(w, knn.getNumNeighbors());
-    if (edges == null || numAngles == 1) {
+    if (numEdges == 0 || numAngles == 1) {
       return new ArrayList<>(Arrays.asList(bestGF));
     }
     PriorityQueue<VisitEdge> q = new PriorityQueue<>(numAngles, new Comparator<VisitEdge>() {
@@ -82,7 +167,7 @@ public class KNNAimModel extends Model {
         return (int)Math.signum(e2.sampleScore - e1.sampleScore);
       }
     });
-    for (int i = 0; i < edges.length; i += 2) {
+    for (int i = 0; i < numEdges; i += 2) {
       // Gumbel max trick to sample random visit guessfactors
       edges[i].sampleScore = Math.log(edges[i].weight) - Math.log(-Math.log(Math.random()));
       q.add(edges[i]);
@@ -96,10 +181,11 @@ public class KNNAimModel extends Model {
   }
 
   public double scoreAimGF(double GF) {
-    if (edges == null) {
+    if (numEdges == 0) {
       return 0.5;
     }
-    int i = Arrays.binarySearch(edges, new VisitEdge(GF, 0, 0));
+    probe.GF = GF;
+    int i = Arrays.binarySearch(edges, 0, numEdges, probe);
     if (i > 0) {
       return edges[i].prob;
     }
@@ -111,8 +197,8 @@ public class KNNAimModel extends Model {
   }
 
   public void paint() {
-    if (edges != null) {
-      for (int i = 1; i < edges.length; i++) {
+    if (numEdges > 0) {
+      for (int i = 1; i < numEdges; i++) {
         Painter.CUSTOM.addShape(Painter.TRANSLUCENT_RED, new Rectangle2D.Double(
             130 + 100 * edges[i - 1].GF, 0,
             100 * (edges[i].GF - edges[i - 1].GF), 100 * edges[i - 1].prob), true);
@@ -126,8 +212,13 @@ public class KNNAimModel extends Model {
     public double weight;
     public double prob;
     public double sampleScore;
+    public int order;  // position before sorting, to break ties between equal guessfactors
 
     public VisitEdge(double GF, double middle, double weight) {
+      set(GF, middle, weight);
+    }
+
+    public void set(double GF, double middle, double weight) {
       this.GF = GF;
       this.middle = middle;
       this.weight = weight;
@@ -0,0 +1,206 @@
+package kc.mega.model;
+
+import java.util.Arrays;
+import java.util.List;
+
+import ags.utils.KdTree.Entry;
+import ags.utils.KdTree.QueryStats;
+import ags.utils.KdTree.ResultHeap;
+
+/**
+ * Puts a small append-only buffer in front of another index so inserts never pay for bucket
+ * splits or rebalancing mid-turn. Queries scan the buffer and search the index into the same
+ * results, so they return exactly what the index alone would. The buffer is merged into the index
+ * in bulk once it fills up, or earlier through flush() when there is spare time. In front of an
+ * index that stores payloads, the buffer keeps them in a payload column too.
+ */
+public class BufferedIndex<T> implements NeighborIndex<T> {
+  private final NeighborIndex<T> index;
+  private final int dimensions;
+  private final int sizeLimit;
+
+  // points not yet merged into the index, oldest first, in [bufferStart, bufferEnd)
+  private final float[] bufferPoints;
+  private final Object[] bufferData;
+  private final int payloadWidth;
+  private final double[] bufferPayloads;
+  private int bufferStart;
+  private int bufferEnd;
+
+  public BufferedIndex(NeighborIndex<T> index, int dimensions, int sizeLimit, int bufferSize) {
+    this(index, dimensions, sizeLimit, bufferSize, 0);
+  }
+
+  /** Buffers an index created with the given payload width (see NeighborIndex.create). */
+  public BufferedIndex(NeighborIndex<T> index, int dimensions, int sizeLimit, int bufferSize,
+      int payloadWidth) {
+    this.index = index;
+    this.dimensions = dimensions;
+    this.sizeLimit = sizeLimit;
+    this.payloadWidth = payloadWidth;
+    bufferPoints = new float[bufferSize * dimensions];
+    bufferData = new Object[bufferSize];
+    bufferPayloads = new double[bufferSize * payloadWidth];
+  }
+
+  @Override
+  public void addPoint(double[] location, T value) {
+    if (size() == sizeLimit) {
+      removeOldest();
+    }
+    if (bufferEnd == bufferData.length) {
+      flush();
+    }
+    for (int j = 0, offset = bufferEnd * dimensions; j < dimensions; j++) {
+      bufferPoints[offset + j] = (float)location[j];
+    }
+    if (payloadWidth > 0) {
+      System.arraycopy((double[])value, 0, bufferPayloads, bufferEnd * payloadWidth, payloadWidth);
+    } else {
+      bufferData[bufferEnd] = value;
+    }
+    bufferEnd++;
+  }
+
+  @Override
+  public void removeOldest() {
+    // buffered points are always newer than the ones in the index
+    if (index.size() > 0) {
+      index.removeOldest();
+    } else if (bufferStart < bufferEnd) {
+      bufferData[bufferStart++] = null;
+    }
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public void flush() {
+    double[] location = new double[dimensions];
+    // the index copies payloads, so one row can carry all of them
+    double[] payload = new double[payloadWidth];
+    for (int i = bufferStart; i < bufferEnd; i++) {
+      for (int j = 0, offset = i * dimensions; j < dimensions; j++) {
+        location[j] = bufferPoints[offset + j];
+      }
+      if (payloadWidth > 0) {
+        System.arraycopy(bufferPayloads, i * payloadWidth, payload, 0, payloadWidth);
+        index.addPoint(location, (T)payload);
+      } else {
+        index.addPoint(location, (T)bufferData[i]);
+      }
+      bufferData[i] = null;
+    }
+    bufferStart = bufferEnd = 0;
+    index.flush();
+  }
+
+  @Override
+  public void nearestNeighbor(double[] location, ResultHeap neighbors) {
+    scanBuffer(location, neighbors);
+    index.nearestNeighbor(location, neighbors);
+  }
+
+  @Override
+  public void nearestNeighbors(double[][] locations, ResultHeap[] neighbors) {
+    for (int i = 0; i < locations.length; i++) {
+      scanBuffer(locations[i], neighbors[i]);
+    }
+    index.nearestNeighbors(locations, neighbors);
+  }
+
+  @Override
+  public NeighborSearch search(double[] location) {
+    return new BufferedSearch(location);
+  }
+
+  /** The nearest count points overall are among the index's nearest count and the buffer. */
+  private class BufferedSearch implements NeighborSearch {
+    private final NeighborSearch indexSearch;
+    private double[] location;
+
+    BufferedSearch(double[] location) {
+      this.location = location;
+      indexSearch = index.search(location);
+    }
+
+    @Override
+    public void nearest(int count, ResultHeap neighbors) {
+      indexSearch.nearest(count, neighbors);
+      scanBuffer(location, neighbors);
+    }
+
+    @Override
+    public boolean restart(double[] location) {
+      if (!indexSearch.restart(location)) {
+        return false;
+      }
+      this.location = location;
+      return true;
+    }
+  }
+
+  private void scanBuffer(double[] location, ResultHeap neighbors) {
+    double range = neighbors.getMaxDist();
+    for (int i = bufferStart; i < bufferEnd; i++) {
+      double dist = dist(i, location);
+      if (dist < range) {
+        if (payloadWidth > 0) {
+          neighbors.addValue(dist, bufferPayloads, i * payloadWidth, payloadWidth);
+        } else {
+          neighbors.addValue(dist, bufferData[i]);
+        }
+        range = neighbors.getMaxDist();
+      }
+    }
+  }
+
+  @Override
+  public List<Entry<T>> rangeSearch(double[] location, double radius) {
+    List<Entry<T>> neighbors = index.rangeSearch(location, radius);
+    for (int i = bufferStart; i < bufferEnd; i++) {
+      double dist = dist(i, location);
+      if (dist <= radius) {
+        neighbors.add(new Entry<>(dist, valueAt(i)));
+      }
+    }
+    return neighbors;
+  }
+
+  @SuppressWarnings("unchecked")
+  private T valueAt(int i) {
+    return payloadWidth > 0 ? (T)Arrays.copyOfRange(
+        bufferPayloads, i * payloadWidth, (i + 1) * payloadWidth) : (T)bufferData[i];
+  }
+
+  @Override
+  public int countWithin(double[] location, double radius) {
+    int count = 0;
+    for (int i = bufferStart; i < bufferEnd; i++) {
+      if (dist(i, location) <= radius) {
+        count++;
+      }
+    }
+    return count + index.countWithin(location, radius);
+  }
+
+  private double dist(int i, double[] location) {
+    return NeighborIndex.distance(bufferPoints, i * dimensions, location, dimensions);
+  }
+
+  @Override
+  public int size() {
+    return index.size() + bufferEnd - bufferStart;
+  }
+
+  /** Stats only cover the wrapped index; buffer scans aren't counted. */
+  @Override
+  public void setStats(QueryStats stats) {
+    index.setStats(stats);
+  }
+
+  /** Buffered points are still scanned exactly. */
+  @Override
+  public void setApproximation(double epsilon) {
+    index.setApproximation(epsilon);
+  }
+}
@@ -0,0 +1,304 @@
+package kc.mega.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ags.utils.FlatKdTree;
+import ags.utils.KdTree.Entry;
+import ags.utils.KdTree.QueryStats;
+import ags.utils.KdTree.ResultHeap;
+
+/**
+ * Neighbor index backed by a FlatKdTree, a KD tree compiled into flat arrays that is searched
+ * with an explicit stack instead of by chasing node pointers. The compiled tree is read-only, so
+ * new points go into a small buffer that is scanned linearly and evicted points are skipped by
+ * sequence number, as in VPTreeIndex. The tree is recompiled from the live points once the buffer
+ * outgrows a few times the square root of the tree size or half the tree has been evicted.
+ *
+ * Since nothing a query reads is ever modified in place, the index can hand out snapshots. After
+ * every change it publishes an immutable Snapshot that shares the compiled tree and the
+ * append-only buffer with earlier ones (a recompile starts a fresh buffer rather than clearing the
+ * old one), so other threads can query a snapshot while training continues.
+ *
+ * With a payload width, double[] values are copied into payload columns alongside the points
+ * instead of being stored as objects.
+ */
+public class CompiledKdTreeIndex<T> implements NeighborIndex<T> {
+  private static final int MIN_BUFFER_LIMIT = 64;
+  private static final int BUFFER_LIMIT_PER_SQRT_POINT = 8;
+
+  private final int dimensions;
+  private final int sizeLimit;
+  private final int payloadWidth;
+
+  private FlatKdTree<T> tree;
+  private long treeFirstSequence;
+
+  // points added since the last compile, in insertion order
+  private float[] bufferPoints;
+  private Object[] bufferData;
+  private double[] bufferPayloads;
+  private int bufferSize;
+
+  private long nextSequence;  // sequence number of the next point added
+  private long oldestSequence;  // points before this one have been evicted
+
+  private QueryStats stats;
+  private int[] stack;  // reused by this index's own searches
+  private volatile Snapshot<T> snapshot;
+
+  public CompiledKdTreeIndex(int dimensions, int sizeLimit) {
+    this(dimensions, sizeLimit, 0);
+  }
+
+  public CompiledKdTreeIndex(int dimensions, int sizeLimit, int payloadWidth) {
+    this.dimensions = dimensions;
+    this.sizeLimit = sizeLimit;
+    this.payloadWidth = payloadWidth;
+    tree = new FlatKdTree<>(
+        dimensions, new float[0], new Object[0], new double[0], payloadWidth, new long[0], 0);
+    stack = new int[tree.getStackSize()];
+    bufferPoints = new float[MIN_BUFFER_LIMIT * dimensions];
+    bufferData = new Object[MIN_BUFFER_LIMIT];
+    bufferPayloads = new double[MIN_BUFFER_LIMIT * payloadWidth];
+    publish();
+  }
+
+  @Override
+  public void addPoint(double[] location, T value) {
+    if (size() == sizeLimit) {
+      oldestSequence++;
+    }
+    if (bufferSize == bufferData.length) {
+      bufferPoints = Arrays.copyOf(bufferPoints, bufferPoints.length * 2);
+      bufferData = Arrays.copyOf(bufferData, bufferData.length * 2);
+      bufferPayloads = Arrays.copyOf(bufferPayloads, bufferPayloads.length * 2);
+    }
+    for (int j = 0, offset = bufferSize * dimensions; j < dimensions; j++) {
+      bufferPoints[offset + j] = (float)location[j];
+    }
+    if (payloadWidth > 0) {
+      System.arraycopy(
+          (double[])value, 0, bufferPayloads, bufferSize * payloadWidth, payloadWidth);
+    } else {
+      bufferData[bufferSize] = value;
+    }
+    bufferSize++;
+    nextSequence++;
+
+    int treeSize = tree.size();
+    int bufferLimit = Math.max(MIN_BUFFER_LIMIT,
+        BUFFER_LIMIT_PER_SQRT_POINT * (int)Math.sqrt(treeSize));
+    if (bufferSize > bufferLimit || deadTreePoints() > treeSize / 2) {
+      compile();
+    }
+    publish();
+  }
+
+  @Override
+  public void removeOldest() {
+    if (size() > 0) {
+      oldestSequence++;
+      publish();
+    }
+  }
+
+  private int deadTreePoints() {
+    return (int)Math.min(tree.size(), Math.max(0, oldestSequence - treeFirstSequence));
+  }
+
+  /** Index of the first buffered point that hasn't been evicted. */
+  private int firstLiveBufferPoint() {
+    return (int)Math.max(0, oldestSequence - (treeFirstSequence + tree.size()));
+  }
+
+  /** Compiles a new tree from the live points in the tree and the buffer. */
+  private void compile() {
+    int count = size();
+    float[] points = new float[count * dimensions];
+    Object[] data = new Object[count];
+    double[] payloads = new double[count * payloadWidth];
+    long[] sequence = new long[count];
+    int j = tree.gather(oldestSequence, points, data, payloads, sequence, 0);
+    long bufferFirstSequence = treeFirstSequence + tree.size();
+    for (int i = firstLiveBufferPoint(); i < bufferSize; i++) {
+      System.arraycopy(bufferPoints, i * dimensions, points, j * dimensions, dimensions);
+      System.arraycopy(
+          bufferPayloads, i * payloadWidth, payloads, j * payloadWidth, payloadWidth);
+      data[j] = bufferData[i];
+      sequence[j++] = bufferFirstSequence + i;
+    }
+    tree = new FlatKdTree<>(dimensions, points, data, payloads, payloadWidth, sequence, count);
+    if (stack.length < tree.getStackSize()) {
+      stack = new int[tree.getStackSize()];
+    }
+    treeFirstSequence = oldestSequence;
+    // snapshots may still be reading the old buffer, so start a new one instead of clearing it
+    bufferPoints = new float[MIN_BUFFER_LIMIT * dimensions];
+    bufferData = new Object[MIN_BUFFER_LIMIT];
+    bufferPayloads = new double[MIN_BUFFER_LIMIT * payloadWidth];
+    bufferSize = 0;
+  }
+
+  private void publish() {
+    snapshot = new Snapshot<>(dimensions, tree, bufferPoints, bufferData, bufferPayloads,
+        firstLiveBufferPoint(), bufferSize, oldestSequence, size(), stats, stack);
+  }
+
+  /**
+   * Returns an immutable view of the index as it is now, which can be queried from any thread
+   * while this index keeps changing.
+   */
+  @Override
+  public Snapshot<T> snapshot() {
+    return snapshot.snapshot();
+  }
+
+  @Override
+  public void nearestNeighbor(double[] location, ResultHeap resultHeap) {
+    snapshot.nearestNeighbor(location, resultHeap);
+  }
+
+  @Override
+  public List<Entry<T>> rangeSearch(double[] location, double radius) {
+    return snapshot.rangeSearch(location, radius);
+  }
+
+  @Override
+  public int countWithin(double[] location, double radius) {
+    return snapshot.countWithin(location, radius);
+  }
+
+  @Override
+  public int size() {
+    return (int)(nextSequence - oldestSequence);
+  }
+
+  @Override
+  public void setStats(QueryStats stats) {
+    this.stats = stats;
+    publish();
+  }
+
+  /**
+   * A read-only version of a CompiledKdTreeIndex. Snapshots record into their index's stats,
+   * which aren't synchronized, so stats are approximate when snapshots are queried concurrently.
+   *
+   * The snapshot an index publishes for its own queries reuses the index's search stack. The ones
+   * handed out by snapshot() don't have one and give each search a new stack, since several
+   * threads may query them at once.
+   */
+  public static class Snapshot<T> implements NeighborIndex<T> {
+    private final int dimensions;
+    private final FlatKdTree<T> tree;
+    private final float[] bufferPoints;
+    private final Object[] bufferData;
+    private final double[] bufferPayloads;
+    private final int payloadWidth;
+    private final int bufferStart;
+    private final int bufferEnd;
+    private final long oldestSequence;
+    private final int size;
+    private final QueryStats stats;
+    private final int[] stack;  // null if this snapshot may be queried concurrently
+
+    private Snapshot(int dimensions, FlatKdTree<T> tree, float[] bufferPoints,
+        Object[] bufferData, double[] bufferPayloads, int bufferStart, int bufferEnd,
+        long oldestSequence, int size, QueryStats stats, int[] stack) {
+      this.dimensions = dimensions;
+      this.tree = tree;
+      this.bufferPoints = bufferPoints;
+      this.bufferData = bufferData;
+      this.bufferPayloads = bufferPayloads;
+      this.payloadWidth = tree.getPayloadWidth();
+      this.bufferStart = bufferStart;
+      this.bufferEnd = bufferEnd;
+      this.oldestSequence = oldestSequence;
+      this.size = size;
+      this.stats = stats;
+      this.stack = stack;
+    }
+
+    @Override
+    public void addPoint(double[] location, T value) {
+      throw new IllegalStateException("Snapshots are read-only");
+    }
+
+    @Override
+    public void removeOldest() {
+      throw new IllegalStateException("Snapshots are read-only");
+    }
+
+    @Override
+    public Snapshot<T> snapshot() {
+      if (stack == null) {
+        return this;
+      }
+      return new Snapshot<>(dimensions, tree, bufferPoints, bufferData, bufferPayloads,
+          bufferStart, bufferEnd, oldestSequence, size, stats, null);
+    }
+
+    @Override
+    public void nearestNeighbor(double[] location, ResultHeap resultHeap) {
+      // scan the buffer first so the tree search starts with a bound; stats only cover the tree
+      double range = resultHeap.getMaxDist();
+      for (int i = bufferStart; i < bufferEnd; i++) {
+        double dist = dist(bufferPoints, i * dimensions, location);
+        if (dist < range) {
+          if (payloadWidth > 0) {
+            resultHeap.addValue(dist, bufferPayloads, i * payloadWidth, payloadWidth);
+          } else {
+            resultHeap.addValue(dist, bufferData[i]);
+          }
+          range = resultHeap.getMaxDist();
+        }
+      }
+      tree.nearestNeighbor(location, resultHeap, oldestSequence, stack(), stats);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<Entry<T>> rangeSearch(double[] location, double radius) {
+      List<Entry<T>> neighbors = new ArrayList<>();
+      for (int i = bufferStart; i < bufferEnd; i++) {
+        double dist = dist(bufferPoints, i * dimensions, location);
+        if (dist <= radius) {
+          neighbors.add(new Entry<>(dist, payloadWidth > 0 ? (T)Arrays.copyOfRange(
+              bufferPayloads, i * payloadWidth, (i + 1) * payloadWidth) : (T)bufferData[i]));
+        }
+      }
+      tree.rangeSearch(location, radius, oldestSequence, stack(), neighbors);
+      return neighbors;
+    }
+
+    @Override
+    public int countWithin(double[] location, double radius) {
+      int count = 0;
+      for (int i = bufferStart; i < bufferEnd; i++) {
+        if (dist(bufferPoints, i * dimensions, location) <= radius) {
+          count++;
+        }
+      }
+      return count + tree.countWithin(location, radius, oldestSequence, stack());
+    }
+
+    private int[] stack() {
+      return stack != null ? stack : new int[tree.getStackSize()];
+    }
+
+    private double dist(float[] points, int offset, double[] location) {
+      return NeighborIndex.distance(points, offset, location, dimensions);
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+
+    @Override
+    public void setStats(QueryStats stats) {
+      throw new IllegalStateException("Snapshots share the stats of their index");
+    }
+  }
+}
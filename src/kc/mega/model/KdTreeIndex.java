@@ -0,0 +1,130 @@
+package kc.mega.model;
+
+import java.util.Arrays;
+import java.util.List;
+
+import ags.utils.KdTree;
+import ags.utils.KdTree.NeighborIterator;
+import ags.utils.KdTree.Entry;
+import ags.utils.KdTree.QueryStats;
+import ags.utils.KdTree.ResultHeap;
+
+/** Neighbor index backed by Rednaxela's KD Tree. */
+public class KdTreeIndex<T> implements NeighborIndex<T> {
+  private final KdTree<T> tree;
+
+  public KdTreeIndex(int dimensions, int sizeLimit) {
+    tree = new KdTree.Manhattan<>(dimensions, sizeLimit);
+  }
+
+  /** An index whose values are double[]s of length payloadWidth, stored unboxed in the tree. */
+  public KdTreeIndex(int dimensions, int sizeLimit, int payloadWidth) {
+    tree = new KdTree.Manhattan<>(dimensions, sizeLimit, payloadWidth);
+  }
+
+  @Override
+  public void addPoint(double[] location, T value) {
+    tree.addPoint(location, value);
+  }
+
+  @Override
+  public void removeOldest() {
+    tree.removeOldest();
+  }
+
+  @Override
+  public void nearestNeighbor(double[] location, ResultHeap neighbors) {
+    tree.nearestNeighbor(location, neighbors);
+  }
+
+  @Override
+  public void nearestNeighbors(double[][] locations, ResultHeap[] neighbors) {
+    tree.nearestNeighborBatch(locations, neighbors);
+  }
+
+  @Override
+  public NeighborSearch search(double[] location) {
+    return new ResumableSearch<>(tree.nearestNeighborIterator(location), tree.getPayloadWidth());
+  }
+
+  /**
+   * Keeps the neighbors found so far in distance order and pulls more from the tree as needed.
+   * Payloads are kept as rows of a double[] so resuming doesn't box them, and restarting reuses
+   * all the arrays.
+   */
+  private static class ResumableSearch<T> implements NeighborSearch {
+    private final NeighborIterator<T> iterator;
+    private final int payloadWidth;
+    private double[] distances = new double[16];
+    private Object[] values = new Object[16];
+    private double[] payloads;
+    private int found;
+
+    ResumableSearch(NeighborIterator<T> iterator, int payloadWidth) {
+      this.iterator = iterator;
+      this.payloadWidth = payloadWidth;
+      payloads = new double[16 * payloadWidth];
+    }
+
+    @Override
+    public boolean restart(double[] location) {
+      iterator.restart(location);
+      Arrays.fill(values, 0, found, null);
+      found = 0;
+      return true;
+    }
+
+    @Override
+    public void nearest(int count, ResultHeap neighbors) {
+      neighbors.reset(count);
+      while (found < count && iterator.hasNext()) {
+        if (found == distances.length) {
+          distances = Arrays.copyOf(distances, 2 * found);
+          values = Arrays.copyOf(values, 2 * found);
+          payloads = Arrays.copyOf(payloads, 2 * found * payloadWidth);
+        }
+        if (payloadWidth > 0) {
+          iterator.step();
+          for (int j = 0; j < payloadWidth; j++) {
+            payloads[found * payloadWidth + j] = iterator.getPayload(j);
+          }
+        } else {
+          values[found] = iterator.next();
+        }
+        distances[found++] = iterator.getDistance();
+      }
+      for (int i = 0; i < Math.min(count, found); i++) {
+        if (payloadWidth > 0) {
+          neighbors.addValue(distances[i], payloads, i * payloadWidth, payloadWidth);
+        } else {
+          neighbors.addValue(distances[i], values[i]);
+        }
+      }
+    }
+  }
+
+  @Override
+  public List<Entry<T>> rangeSearch(double[] location, double radius) {
+    return tree.rangeSearch(location, radius);
+  }
+
+  @Override
+  public int countWithin(double[] location, double radius) {
+    return tree.countWithin(location, radius);
+  }
+
+  @Override
+  public int size() {
+    return tree.size();
+  }
+
+  @Override
+  public void setStats(QueryStats stats) {
+    tree.setStats(stats);
+  }
+
+  @Override
+  public void setApproximation(double epsilon) {
+    tree.setApproximation(epsilon);
+  }
+}
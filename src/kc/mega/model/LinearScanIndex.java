@@ -0,0 +1,141 @@
+package kc.mega.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ags.utils.KdTree.Entry;
+import ags.utils.KdTree.QueryStats;
+import ags.utils.KdTree.ResultHeap;
+
+/**
+ * Brute-force neighbor index that scans every point. Points live in one flat ring buffer, so
+ * eviction is free and the distance loop runs over contiguous memory, which makes it faster than
+ * a KD tree for small, low-dimensional datasets. With a payload width, double[] values are copied
+ * into a payload column alongside the points instead of being stored as objects.
+ */
+public class LinearScanIndex<T> implements NeighborIndex<T> {
+  private final int dimensions;
+  private final float[] points;
+  private final Object[] data;
+  private final int payloadWidth;
+  private final double[] payloads;
+  private int oldest;
+  private int size;
+  private QueryStats stats;
+
+  public LinearScanIndex(int dimensions, int sizeLimit) {
+    this(dimensions, sizeLimit, 0);
+  }
+
+  public LinearScanIndex(int dimensions, int sizeLimit, int payloadWidth) {
+    this.dimensions = dimensions;
+    this.payloadWidth = payloadWidth;
+    points = new float[sizeLimit * dimensions];
+    data = new Object[sizeLimit];
+    payloads = new double[sizeLimit * payloadWidth];
+  }
+
+  @Override
+  public void addPoint(double[] location, T value) {
+    if (size == data.length) {
+      removeOldest();
+    }
+    int slot = (oldest + size++) % data.length;
+    for (int j = 0, offset = slot * dimensions; j < dimensions; j++) {
+      points[offset + j] = (float)location[j];
+    }
+    if (payloadWidth > 0) {
+      System.arraycopy((double[])value, 0, payloads, slot * payloadWidth, payloadWidth);
+    } else {
+      data[slot] = value;
+    }
+  }
+
+  @Override
+  public void removeOldest() {
+    if (size > 0) {
+      data[oldest] = null;
+      oldest = (oldest + 1) % data.length;
+      size--;
+    }
+  }
+
+  @Override
+  public void nearestNeighbor(double[] location, ResultHeap resultHeap) {
+    long startTime = stats == null ? 0 : System.nanoTime();
+    // the live points wrap around the end of the ring
+    int end = oldest + size;
+    nearest(location, resultHeap, oldest, Math.min(end, data.length));
+    nearest(location, resultHeap, 0, end - data.length);
+    if (stats != null) {
+      stats.record(1, size > 0 ? 1 : 0, size, resultHeap.replacements,
+          System.nanoTime() - startTime);
+    }
+  }
+
+  private void nearest(double[] location, ResultHeap resultHeap, int from, int to) {
+    double range = resultHeap.getMaxDist();
+    for (int i = from, offset = from * dimensions; i < to; i++, offset += dimensions) {
+      double dist = dist(offset, location);
+      if (dist < range) {
+        if (payloadWidth > 0) {
+          resultHeap.addValue(dist, payloads, i * payloadWidth, payloadWidth);
+        } else {
+          resultHeap.addValue(dist, data[i]);
+        }
+        range = resultHeap.getMaxDist();
+      }
+    }
+  }
+
+  @Override
+  public List<Entry<T>> rangeSearch(double[] location, double radius) {
+    List<Entry<T>> neighbors = new ArrayList<>();
+    int end = oldest + size;
+    withinRange(location, radius, neighbors, oldest, Math.min(end, data.length));
+    withinRange(location, radius, neighbors, 0, end - data.length);
+    return neighbors;
+  }
+
+  private void withinRange(
+      double[] location, double radius, List<Entry<T>> neighbors, int from, int to) {
+    for (int i = from, offset = from * dimensions; i < to; i++, offset += dimensions) {
+      double dist = dist(offset, location);
+      if (dist <= radius) {
+        neighbors.add(new Entry<>(dist, valueAt(i)));
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private T valueAt(int i) {
+    return payloadWidth > 0 ?
+        (T)Arrays.copyOfRange(payloads, i * payloadWidth, (i + 1) * payloadWidth) : (T)data[i];
+  }
+
+  @Override
+  public int countWithin(double[] location, double radius) {
+    int count = 0;
+    for (int j = 0; j < size; j++) {
+      if (dist(((oldest + j) % data.length) * dimensions, location) <= radius) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private double dist(int offset, double[] location) {
+    return NeighborIndex.distance(points, offset, location, dimensions);
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public void setStats(QueryStats stats) {
+    this.stats = stats;
+  }
+}
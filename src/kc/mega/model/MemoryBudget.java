@@ -0,0 +1,225 @@
+package kc.mega.model;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Keeps the points stored by all the KNN models within one memory budget, since Robocode runs the
+ * robot in a small JVM shared with other bots. Models register their WaveKNNs here. Once the
+ * estimated size of all their points crosses the budget, it is split up in proportion to each
+ * model's priority (e.g., its weight in the danger ensemble), and models over their new size limit
+ * evict their oldest points. Every model keeps at least enough points to use its full number of
+ * neighbors. Models with zero priority stop growing but keep the points they have while the budget
+ * allows, since their priority may come back. KNNs sharing a SharedFeatureIndex are budgeted as
+ * one store with the highest priority of any of them, since its points are evicted for all of
+ * them at once.
+ */
+public enum MemoryBudget {
+  INSTANCE;
+
+  // by default the points may take up this fraction of the JVM's maximum heap
+  private static final double DEFAULT_HEAP_FRACTION = 0.1;
+  private static final int MIN_POINTS = 200;
+  // while the budget limits some model, turns between rebalances to follow changing priorities
+  private static final int REBALANCE_INTERVAL = 100;
+
+  private final List<Registration> registrations = new ArrayList<>();
+  private long budget = (long)(DEFAULT_HEAP_FRACTION * Runtime.getRuntime().maxMemory());
+  private int turnsSinceRebalance;
+
+  /** The points of one KNN, or of a shared store and every KNN registered with it. */
+  private static class Registration {
+    final SharedFeatureIndex shared;  // null unless the KNNs share their points
+    final List<String> names = new ArrayList<>();
+    final List<WaveKNN<?>> knns = new ArrayList<>();
+    final List<Double> priorities = new ArrayList<>();
+    int sizeLimit;
+
+    Registration(SharedFeatureIndex shared) {
+      this.shared = shared;
+    }
+
+    double priority() {
+      double priority = 0;
+      for (double knnPriority : priorities) {
+        priority = Math.max(priority, knnPriority);
+      }
+      return priority;
+    }
+
+    int size() {
+      return shared != null ? shared.size() : knns.get(0).size();
+    }
+
+    int capacity() {
+      return shared != null ? shared.getCapacity() : knns.get(0).getCapacity();
+    }
+
+    int bytesPerPoint() {
+      return shared != null ? shared.getBytesPerPoint() : knns.get(0).getBytesPerPoint();
+    }
+
+    /** The fewest points with which every KNN still uses its full number of neighbors. */
+    int minSizeLimit() {
+      int minSizeLimit = 0;
+      for (WaveKNN<?> knn : knns) {
+        minSizeLimit = Math.max(minSizeLimit, knn.getMinSizeLimit());
+      }
+      return minSizeLimit;
+    }
+
+    int getSizeLimit() {
+      return shared != null ? shared.getSizeLimit() : knns.get(0).getSizeLimit();
+    }
+
+    void applySizeLimit() {
+      if (shared != null) {
+        shared.setSizeLimit(sizeLimit);
+      } else {
+        knns.get(0).setSizeLimit(sizeLimit);
+      }
+    }
+
+    long bytes() {
+      return (long)size() * bytesPerPoint();
+    }
+  }
+
+  public void register(String name, WaveKNN<?> knn) {
+    SharedFeatureIndex shared = knn.getSharedIndex();
+    Registration registration = null;
+    for (Registration existing : registrations) {
+      if (shared != null && existing.shared == shared) {
+        registration = existing;
+      }
+    }
+    if (registration == null) {
+      registration = new Registration(shared);
+      registrations.add(registration);
+    }
+    registration.names.add(name);
+    registration.knns.add(knn);
+    registration.priorities.add(1.0);
+  }
+
+  /** Sets how much of the budget the knn should get relative to the others (1 by default). */
+  public void setPriority(WaveKNN<?> knn, double priority) {
+    for (Registration registration : registrations) {
+      int i = registration.knns.indexOf(knn);
+      if (i >= 0) {
+        registration.priorities.set(i, priority);
+      }
+    }
+  }
+
+  public void setBudget(long bytes) {
+    budget = bytes;
+    rebalance();
+  }
+
+  public long getBudget() {
+    return budget;
+  }
+
+  public long getLivePoints() {
+    long points = 0;
+    for (Registration registration : registrations) {
+      points += registration.size();
+    }
+    return points;
+  }
+
+  /** Roughly how many bytes of heap the stored points take. */
+  public long getLiveBytes() {
+    long bytes = 0;
+    for (Registration registration : registrations) {
+      bytes += registration.bytes();
+    }
+    return bytes;
+  }
+
+  /** Rebalances the size limits if the points have outgrown the budget. */
+  public void onTurn() {
+    boolean limited = false;
+    for (Registration registration : registrations) {
+      limited |= registration.getSizeLimit() < registration.capacity();
+    }
+    if (getLiveBytes() > budget || (limited && ++turnsSinceRebalance >= REBALANCE_INTERVAL)) {
+      rebalance();
+    }
+  }
+
+  /**
+   * Gives every model a minimum, lets models with zero priority keep what they have as far as the
+   * budget allows, then splits the rest of the budget in proportion to priority. Models that can't
+   * use their whole share (because it would exceed their capacity) pass what is left on to the
+   * others.
+   */
+  private void rebalance() {
+    turnsSinceRebalance = 0;
+    double remaining = budget;
+    double totalPriority = 0;
+    double inactiveBytes = 0;
+    List<Registration> growing = new ArrayList<>();
+    List<Registration> inactive = new ArrayList<>();
+    for (Registration registration : registrations) {
+      registration.sizeLimit = Math.min(
+          Math.max(MIN_POINTS, registration.minSizeLimit()), registration.capacity());
+      remaining -= (double)registration.sizeLimit * registration.bytesPerPoint();
+      if (registration.priority() == 0) {
+        inactive.add(registration);
+        inactiveBytes += (double)Math.max(0, registration.size() - registration.sizeLimit) *
+            registration.bytesPerPoint();
+      } else if (registration.sizeLimit < registration.capacity()) {
+        growing.add(registration);
+        totalPriority += registration.priority();
+      }
+    }
+    // if the budget can't hold all of the inactive models' points, they are all cut back evenly
+    double kept = inactiveBytes > 0 ? Math.min(1, Math.max(0, remaining) / inactiveBytes) : 0;
+    for (Registration registration : inactive) {
+      int extra = (int)(Math.max(0, registration.size() - registration.sizeLimit) * kept);
+      registration.sizeLimit += extra;
+      remaining -= (double)extra * registration.bytesPerPoint();
+    }
+
+    boolean filled = true;
+    while (filled && remaining > 0 && !growing.isEmpty()) {
+      filled = false;
+      for (Iterator<Registration> it = growing.iterator(); it.hasNext();) {
+        Registration registration = it.next();
+        double needed = (double)(registration.capacity() - registration.sizeLimit) *
+            registration.bytesPerPoint();
+        if (remaining * registration.priority() / totalPriority >= needed) {
+          registration.sizeLimit = registration.capacity();
+          remaining -= needed;
+          totalPriority -= registration.priority();
+          it.remove();
+          filled = true;
+        }
+      }
+    }
+    for (Registration registration : growing) {
+      if (remaining > 0) {
+        registration.sizeLimit += (int)(remaining * registration.priority() / totalPriority /
+            registration.bytesPerPoint());
+      }
+    }
+
+    for (Registration registration : registrations) {
+      registration.applySizeLimit();
+    }
+  }
+
+  public void printUsage() {
+    System.out.printf("KNN memory: %d points, %.1f of %.1f MB\n",
+        getLivePoints(), getLiveBytes() / 1e6, budget / 1e6);
+    for (Registration registration : registrations) {
+      System.out.printf(" %s: %d points (limit %d of %d), %.0f KB, priority %.3f\n",
+          String.join(", ", registration.names), registration.size(),
+          registration.getSizeLimit(), registration.capacity(), registration.bytes() / 1e3,
+          registration.priority());
+    }
+  }
+}
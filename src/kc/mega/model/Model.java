@@ -3,15 +3,33 @@ package kc.mega.model;
 import kc.mega.game.GameState;
 import kc.mega.wave.WaveWithFeatures;
 
+import ags.utils.KdTree.QueryStats;
+
 /** Base class for machine learning models. */
 public abstract class Model {
+  public static boolean trackQueryCosts = false;  // record nearest neighbor query costs
+
   public final String name;
+  public final QueryStats queryStats;
 
   public Model(String name) {
     this.name = name;
+    queryStats = trackQueryCosts ? new QueryStats() : null;
   }
 
   public void train(WaveWithFeatures w) {};
 
   public void onTurn(GameState gs) {};
+
+  /** Finishes any deferred training work; called when there is time to spare. */
+  public void flush() {};
+
+  /** Sets the model's share of the MemoryBudget relative to other models. */
+  public void setMemoryPriority(double priority) {};
+
+  public void printQueryStats() {
+    if (queryStats != null && queryStats.queries > 0) {
+      System.out.println(name + ": " + queryStats);
+    }
+  }
 }
\ No newline at end of file
@@ -0,0 +1,141 @@
+package kc.mega.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ags.utils.KdTree.Entry;
+import ags.utils.KdTree.QueryStats;
+import ags.utils.KdTree.ResultHeap;
+
+/**
+ * A size-limited store of points that answers nearest neighbor queries under L1 distance. Points
+ * are stored in single precision, which halves their memory at no measurable cost in accuracy.
+ */
+public interface NeighborIndex<T> {
+  /** The available index implementations. */
+  enum Type {KD_TREE, LINEAR_SCAN, VP_TREE, COMPILED_KD_TREE}
+
+  /**
+   * The L1 distance from the point stored at points[offset, offset + dimensions) to location,
+   * skipping dimensions where either is NaN like KdTree.Manhattan does. Every index measures
+   * distances with this so they all return the KD tree's neighbors.
+   */
+  static double distance(float[] points, int offset, double[] location, int dimensions) {
+    double dist = 0;
+    for (int j = 0; j < dimensions; j++) {
+      dist += Math.abs(points[offset + j] - location[j]);
+    }
+    if (Double.isNaN(dist)) {
+      dist = 0;
+      for (int j = 0; j < dimensions; j++) {
+        double diff = points[offset + j] - location[j];
+        if (!Double.isNaN(diff)) {
+          dist += Math.abs(diff);
+        }
+      }
+    }
+    return dist;
+  }
+
+  static <T> NeighborIndex<T> create(Type type, int dimensions, int sizeLimit) {
+    return create(type, dimensions, sizeLimit, 0);
+  }
+
+  /**
+   * Creates an index whose values are double[]s of length payloadWidth, which it copies into
+   * primitive payload columns instead of keeping as objects (or an ordinary index if it is 0).
+   * Queries fill in the payload rows of result heaps with the same payload width and return
+   * copies of the payloads as values otherwise.
+   */
+  static <T> NeighborIndex<T> create(Type type, int dimensions, int sizeLimit, int payloadWidth) {
+    switch (type) {
+      case LINEAR_SCAN:
+        return new LinearScanIndex<>(dimensions, sizeLimit, payloadWidth);
+      case VP_TREE:
+        return new VPTreeIndex<>(dimensions, sizeLimit, payloadWidth);
+      case COMPILED_KD_TREE:
+        return new CompiledKdTreeIndex<>(dimensions, sizeLimit, payloadWidth);
+      default:
+        return new KdTreeIndex<>(dimensions, sizeLimit, payloadWidth);
+    }
+  }
+
+  /** Adds a point, evicting the oldest one if the index is full. */
+  void addPoint(double[] location, T value);
+
+  /** Evicts the oldest point, if there is one. */
+  void removeOldest();
+
+  /**
+   * Returns an immutable view of the index as it is now, which other threads can query while this
+   * index keeps changing. Only indexes that never modify what queries read support this.
+   */
+  default NeighborIndex<T> snapshot() {
+    throw new IllegalStateException(getClass().getSimpleName() + " doesn't support snapshots");
+  }
+
+  /** Finishes any deferred insertion work now, e.g. on a turn with time to spare. */
+  default void flush() {}
+
+  /**
+   * Fills neighbors with the nearest points to location, as many as it was reset to hold. Doesn't
+   * allocate, so callers can reuse one heap across queries.
+   */
+  void nearestNeighbor(double[] location, ResultHeap neighbors);
+
+  /**
+   * Starts a search at location that can be widened to more neighbors later. By default each
+   * call re-runs the query from scratch.
+   */
+  default NeighborSearch search(double[] location) {
+    return (count, neighbors) -> {
+      neighbors.reset(count);
+      nearestNeighbor(location, neighbors);
+    };
+  }
+
+  /** Returns the (unordered) count nearest points to location. */
+  default List<Entry<T>> nearestNeighbor(double[] location, int count) {
+    ResultHeap neighbors = new ResultHeap(count);
+    nearestNeighbor(location, neighbors);
+    return neighbors.getEntries(false);
+  }
+
+  /** Fills each neighbors[i] with the nearest points to locations[i]. */
+  default void nearestNeighbors(double[][] locations, ResultHeap[] neighbors) {
+    for (int i = 0; i < locations.length; i++) {
+      nearestNeighbor(locations[i], neighbors[i]);
+    }
+  }
+
+  /** Returns the (unordered) count nearest points to each location. */
+  default List<List<Entry<T>>> nearestNeighbors(double[][] locations, int count) {
+    ResultHeap[] heaps = new ResultHeap[locations.length];
+    for (int i = 0; i < locations.length; i++) {
+      heaps[i] = new ResultHeap(count);
+    }
+    nearestNeighbors(locations, heaps);
+    List<List<Entry<T>>> neighbors = new ArrayList<>(locations.length);
+    for (ResultHeap heap : heaps) {
+      neighbors.add(heap.getEntries(false));
+    }
+    return neighbors;
+  }
+
+  /** Returns the (unordered) points within radius of location. */
+  List<Entry<T>> rangeSearch(double[] location, double radius);
+
+  /** Returns the number of points within radius of location. */
+  int countWithin(double[] location, double radius);
+
+  int size();
+
+  /** Records the cost of future queries into stats (or stops recording if null). */
+  void setStats(QueryStats stats);
+
+  /**
+   * Lets nearest neighbor queries return neighbors up to 1 + epsilon times farther than the exact
+   * ones in exchange for searching less of the index. Indexes that can't prune stay exact.
+   */
+  default void setApproximation(double epsilon) {}
+}
@@ -0,0 +1,21 @@
+package kc.mega.model;
+
+import ags.utils.KdTree.ResultHeap;
+
+/**
+ * A nearest neighbor query for one location that can be widened. Indexes that support it resume
+ * where the previous call stopped, so asking for k/2 and then k neighbors costs about as much as
+ * asking for k once. Only valid until the index is next modified.
+ */
+public interface NeighborSearch {
+  /** Resets neighbors to hold count points and fills it with the nearest ones. */
+  void nearest(int count, ResultHeap neighbors);
+
+  /**
+   * Starts this search over at location (also after the index changed), reusing its buffers.
+   * Returns false if it can't, and a new search is needed instead.
+   */
+  default boolean restart(double[] location) {
+    return false;
+  }
+}
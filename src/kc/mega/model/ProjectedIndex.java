@@ -0,0 +1,439 @@
+package kc.mega.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ags.utils.KdTree.Entry;
+import ags.utils.KdTree.QueryStats;
+import ags.utils.KdTree.ResultHeap;
+
+/**
+ * Searches for candidate neighbors in a lower-dimensional projection of the points, where KD tree
+ * pruning works much better, and re-ranks the candidates by their exact L1 distance in the full
+ * space. The projection is onto the top principal components of the stored points. It is refit
+ * each time the number of points added doubles, and then every sizeLimit points so it follows
+ * the points as old ones are evicted. A refit builds a new projected index a few points per
+ * insert (or all at once in flush()), so no single insert pays for re-projecting every point, and
+ * queries keep using the old projection until the new one has every point. Until the first fit
+ * is built, queries scan every point. NaN coordinates are projected as if they were the mean.
+ *
+ * Nearest neighbor queries are approximate: they return the nearest of CANDIDATES_PER_NEIGHBOR
+ * times as many candidates as requested. Range and count queries are exact, since for an
+ * orthonormal projection onto m dimensions the projected L1 distance is at most sqrt(m) times the
+ * full one (they scan every point when NaNs are involved, for which that bound doesn't hold).
+ * With a payload width, double[] values are copied into a payload column alongside the full
+ * points instead of being stored as objects.
+ */
+public class ProjectedIndex<T> implements NeighborIndex<T> {
+  private static final int CANDIDATES_PER_NEIGHBOR = 3;
+  private static final int MIN_FIT_POINTS = 256;
+  // points added to a refit's new index per point inserted (which is enough to finish it well
+  // before the next refit)
+  private static final int REFIT_POINTS_PER_INSERT = 4;
+
+  private final Type type;
+  private final int dimensions;
+  private final int projectedDimensions;
+  private final int sizeLimit;
+
+  // the full points, in a ring buffer in insertion order as in LinearScanIndex
+  private final float[] points;
+  private final Object[] data;
+  private final int payloadWidth;
+  private final double[] payloads;
+  private int oldest;
+  private int size;
+  private long added;  // sequence number of the next point, whose slot is added % sizeLimit
+  private int nanPoints;  // stored points with a NaN coordinate
+
+  // running sums for the mean and covariance of the stored points without NaNs
+  private final double[] sum;
+  private final double[][] sumOfProducts;
+  private long fitPoints;
+  private long nextFit = MIN_FIT_POINTS;
+
+  private Projection projection;  // the projection of index, or null before the first fit
+  private NeighborIndex<Integer> index;  // projected points, valued by their ring slot
+  // a refit being built, which has the points from sequence number refitStart to refitEnd so far
+  private Projection refitProjection;
+  private NeighborIndex<Integer> refitIndex;
+  private long refitStart;
+  private long refitEnd;
+  private final ResultHeap candidates = new ResultHeap(0);
+  private final double[] projected;
+  private QueryStats stats;
+  private double epsilon;
+
+  public ProjectedIndex(Type type, int dimensions, int projectedDimensions, int sizeLimit) {
+    this(type, dimensions, projectedDimensions, sizeLimit, 0);
+  }
+
+  public ProjectedIndex(
+      Type type, int dimensions, int projectedDimensions, int sizeLimit, int payloadWidth) {
+    this.type = type;
+    this.payloadWidth = payloadWidth;
+    payloads = new double[sizeLimit * payloadWidth];
+    this.dimensions = dimensions;
+    this.projectedDimensions = projectedDimensions;
+    this.sizeLimit = sizeLimit;
+    points = new float[sizeLimit * dimensions];
+    data = new Object[sizeLimit];
+    sum = new double[dimensions];
+    sumOfProducts = new double[dimensions][dimensions];
+    projected = new double[projectedDimensions];
+  }
+
+  @Override
+  public void addPoint(double[] location, T value) {
+    if (size == sizeLimit) {
+      removeOldest();
+    }
+    int slot = (int)(added++ % sizeLimit);
+    size++;
+    for (int j = 0, offset = slot * dimensions; j < dimensions; j++) {
+      points[offset + j] = (float)location[j];
+    }
+    if (payloadWidth > 0) {
+      System.arraycopy((double[])value, 0, payloads, slot * payloadWidth, payloadWidth);
+    } else {
+      data[slot] = value;
+    }
+    if (hasNaN(slot)) {
+      nanPoints++;
+    } else {
+      accumulate(slot, 1);
+    }
+    if (index != null) {
+      index.addPoint(projectSlot(projection, slot), slot);
+    }
+    if (refitIndex == null && added >= nextFit && fitPoints > 0) {
+      startRefit();
+      nextFit = added + Math.min(added, sizeLimit);
+    }
+    continueRefit(REFIT_POINTS_PER_INSERT);
+  }
+
+  @Override
+  public void removeOldest() {
+    if (size > 0) {
+      if (index != null) {
+        index.removeOldest();
+      }
+      if (refitIndex != null) {
+        // the refit has the oldest points, if it has any yet
+        if (refitEnd > refitStart) {
+          refitIndex.removeOldest();
+        } else {
+          refitEnd++;
+        }
+        refitStart++;
+      }
+      if (hasNaN(oldest)) {
+        nanPoints--;
+      } else {
+        accumulate(oldest, -1);
+      }
+      data[oldest] = null;
+      oldest = (oldest + 1) % sizeLimit;
+      size--;
+    }
+  }
+
+  /** Finishes any refit in progress too. */
+  @Override
+  public void flush() {
+    continueRefit(Long.MAX_VALUE);
+    if (index != null) {
+      index.flush();
+    }
+  }
+
+  /** Adds (sign 1) or removes (sign -1) the stored point in slot from the running sums. */
+  private void accumulate(int slot, int sign) {
+    int offset = slot * dimensions;
+    fitPoints += sign;
+    for (int i = 0; i < dimensions; i++) {
+      double value = points[offset + i];
+      sum[i] += sign * value;
+      for (int j = 0; j <= i; j++) {
+        sumOfProducts[i][j] += sign * value * points[offset + j];
+      }
+    }
+  }
+
+  /** Fits a projection to the stored points and starts building an index of them with it. */
+  private void startRefit() {
+    double[] mean = new double[dimensions];
+    for (int i = 0; i < dimensions; i++) {
+      mean[i] = sum[i] / fitPoints;
+    }
+    double[][] covariance = new double[dimensions][dimensions];
+    for (int i = 0; i < dimensions; i++) {
+      for (int j = 0; j <= i; j++) {
+        covariance[i][j] = covariance[j][i] = sumOfProducts[i][j] / fitPoints - mean[i] * mean[j];
+      }
+    }
+    refitProjection = new Projection(mean, topEigenvectors(covariance, projectedDimensions));
+    refitIndex = NeighborIndex.create(type, projectedDimensions, sizeLimit);
+    refitIndex.setStats(stats);
+    refitIndex.setApproximation(epsilon);
+    refitStart = refitEnd = added - size;
+  }
+
+  /**
+   * Adds up to count more points to the refit in progress, if any, and switches queries over to
+   * it once it has all of them.
+   */
+  private void continueRefit(long count) {
+    if (refitIndex == null) {
+      return;
+    }
+    for (; refitEnd < added && count > 0; refitEnd++, count--) {
+      int slot = (int)(refitEnd % sizeLimit);
+      refitIndex.addPoint(projectSlot(refitProjection, slot), slot);
+    }
+    if (refitEnd == added) {
+      projection = refitProjection;
+      index = refitIndex;
+      refitProjection = null;
+      refitIndex = null;
+    }
+  }
+
+  /** Projects a stored point (as rounded to single precision, so refits project it the same). */
+  private double[] projectSlot(Projection projection, int slot) {
+    double[] location = new double[dimensions];
+    for (int j = 0; j < dimensions; j++) {
+      location[j] = points[slot * dimensions + j];
+    }
+    return projection.project(location, new double[projectedDimensions]);
+  }
+
+  /** Centers points on the mean and projects them onto the components. */
+  private static class Projection {
+    final double[] mean;
+    final double[][] components;  // orthonormal rows
+
+    Projection(double[] mean, double[][] components) {
+      this.mean = mean;
+      this.components = components;
+    }
+
+    /** Projects location into result, treating NaN coordinates as the mean. */
+    double[] project(double[] location, double[] result) {
+      for (int c = 0; c < components.length; c++) {
+        double value = 0;
+        for (int j = 0; j < mean.length; j++) {
+          double centered = location[j] - mean[j];
+          if (!Double.isNaN(centered)) {
+            value += components[c][j] * centered;
+          }
+        }
+        result[c] = value;
+      }
+      return result;
+    }
+  }
+
+  @Override
+  public void nearestNeighbor(double[] location, ResultHeap neighbors) {
+    if (index == null) {
+      for (int k = 0; k < size; k++) {
+        int slot = (oldest + k) % sizeLimit;
+        double dist = dist(slot, location);
+        if (dist < neighbors.getMaxDist()) {
+          addValue(neighbors, dist, slot);
+        }
+      }
+      return;
+    }
+    if (size == 0) {
+      return;
+    }
+    candidates.reset(Math.min(size, CANDIDATES_PER_NEIGHBOR * neighbors.getMaxCount()));
+    index.nearestNeighbor(projection.project(location, projected), candidates);
+    for (int i = 0; i < candidates.getCount(); i++) {
+      int slot = candidates.<Integer>getValue(i);
+      double dist = dist(slot, location);
+      if (dist < neighbors.getMaxDist()) {
+        addValue(neighbors, dist, slot);
+      }
+    }
+  }
+
+  private void addValue(ResultHeap neighbors, double dist, int slot) {
+    if (payloadWidth > 0) {
+      neighbors.addValue(dist, payloads, slot * payloadWidth, payloadWidth);
+    } else {
+      neighbors.addValue(dist, data[slot]);
+    }
+  }
+
+  @Override
+  public List<Entry<T>> rangeSearch(double[] location, double radius) {
+    List<Entry<T>> neighbors = new ArrayList<>();
+    for (int slot : candidatesWithin(location, radius)) {
+      double dist = dist(slot, location);
+      if (dist <= radius) {
+        neighbors.add(new Entry<>(dist, valueAt(slot)));
+      }
+    }
+    return neighbors;
+  }
+
+  @SuppressWarnings("unchecked")
+  private T valueAt(int slot) {
+    return payloadWidth > 0 ? (T)Arrays.copyOfRange(
+        payloads, slot * payloadWidth, (slot + 1) * payloadWidth) : (T)data[slot];
+  }
+
+  @Override
+  public int countWithin(double[] location, double radius) {
+    int count = 0;
+    for (int slot : candidatesWithin(location, radius)) {
+      if (dist(slot, location) <= radius) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /** Returns the slots of a superset of the points within radius of location. */
+  private int[] candidatesWithin(double[] location, double radius) {
+    if (index == null || nanPoints > 0 || hasNaN(location)) {
+      int[] slots = new int[size];
+      for (int k = 0; k < size; k++) {
+        slots[k] = (oldest + k) % sizeLimit;
+      }
+      return slots;
+    }
+    // the slack covers rounding the projected points to single precision
+    double projectedRadius = radius * Math.sqrt(projectedDimensions) * (1 + 1e-5) + 1e-5;
+    List<Entry<Integer>> entries =
+        index.rangeSearch(projection.project(location, projected), projectedRadius);
+    int[] slots = new int[entries.size()];
+    for (int i = 0; i < slots.length; i++) {
+      slots[i] = entries.get(i).value;
+    }
+    return slots;
+  }
+
+  private double dist(int slot, double[] location) {
+    return NeighborIndex.distance(points, slot * dimensions, location, dimensions);
+  }
+
+  private boolean hasNaN(int slot) {
+    for (int j = 0, offset = slot * dimensions; j < dimensions; j++) {
+      if (Float.isNaN(points[offset + j])) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean hasNaN(double[] location) {
+    for (double value : location) {
+      if (Double.isNaN(value)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the eigenvectors of the symmetric matrix a with the largest eigenvalues as rows, using
+   * cyclic Jacobi rotations (plenty fast for a few dozen dimensions). Overwrites a.
+   */
+  private static double[][] topEigenvectors(double[][] a, int count) {
+    int n = a.length;
+    double[][] v = new double[n][n];
+    for (int i = 0; i < n; i++) {
+      v[i][i] = 1;
+    }
+    for (int sweep = 0; sweep < 50; sweep++) {
+      double offDiagonal = 0;
+      for (int p = 0; p < n; p++) {
+        for (int q = p + 1; q < n; q++) {
+          offDiagonal += a[p][q] * a[p][q];
+        }
+      }
+      if (offDiagonal < 1e-18) {
+        break;
+      }
+      for (int p = 0; p < n; p++) {
+        for (int q = p + 1; q < n; q++) {
+          if (Math.abs(a[p][q]) < 1e-30) {
+            continue;
+          }
+          double theta = (a[q][q] - a[p][p]) / (2 * a[p][q]);
+          double t = Math.signum(theta) / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+          if (theta == 0) {
+            t = 1;
+          }
+          double c = 1 / Math.sqrt(t * t + 1), s = t * c;
+          for (int k = 0; k < n; k++) {
+            double akp = a[k][p], akq = a[k][q];
+            a[k][p] = c * akp - s * akq;
+            a[k][q] = s * akp + c * akq;
+          }
+          for (int k = 0; k < n; k++) {
+            double apk = a[p][k], aqk = a[q][k];
+            a[p][k] = c * apk - s * aqk;
+            a[q][k] = s * apk + c * aqk;
+          }
+          for (int k = 0; k < n; k++) {
+            double vkp = v[k][p], vkq = v[k][q];
+            v[k][p] = c * vkp - s * vkq;
+            v[k][q] = s * vkp + c * vkq;
+          }
+        }
+      }
+    }
+
+    boolean[] used = new boolean[n];
+    double[][] top = new double[count][n];
+    for (int c = 0; c < count; c++) {
+      int best = -1;
+      for (int i = 0; i < n; i++) {
+        if (!used[i] && (best == -1 || a[i][i] > a[best][best])) {
+          best = i;
+        }
+      }
+      used[best] = true;
+      for (int k = 0; k < n; k++) {
+        top[c][k] = v[k][best];
+      }
+    }
+    return top;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  /** Stats only cover the candidate search in the projected space. */
+  @Override
+  public void setStats(QueryStats stats) {
+    this.stats = stats;
+    if (index != null) {
+      index.setStats(stats);
+    }
+    if (refitIndex != null) {
+      refitIndex.setStats(stats);
+    }
+  }
+
+  /** Only the candidate search is approximate; candidates are still reranked exactly. */
+  @Override
+  public void setApproximation(double epsilon) {
+    this.epsilon = epsilon;
+    if (index != null) {
+      index.setApproximation(epsilon);
+    }
+    if (refitIndex != null) {
+      refitIndex.setApproximation(epsilon);
+    }
+  }
+}
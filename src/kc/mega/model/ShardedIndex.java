@@ -0,0 +1,202 @@
+package kc.mega.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ags.utils.KdTree.Entry;
+import ags.utils.KdTree.QueryStats;
+import ags.utils.KdTree.ResultHeap;
+
+/**
+ * Spreads points round-robin over several smaller indexes so big datasets can be searched in
+ * parallel. Since point i goes to shard i % N, the oldest point overall is always the oldest one
+ * in its shard, which keeps eviction exact.
+ *
+ * Given a fork-join pool, a nearest neighbor query on a large enough index fans out to every
+ * shard on it. Each shard searches into its own heap, and the shards share the smallest
+ * k-th-nearest distance any of them has found so far, which bounds the overall k-th nearest
+ * distance, so each shard prunes with the best bound found anywhere. The shard results are then
+ * merged exactly. Without a pool, or on smaller indexes, the shards are searched one after another
+ * on the calling thread into the same heap.
+ *
+ * Pools are not for competition: Robocode's security manager restricts the threads robots may
+ * use, so the robot only shards on its own thread, and pools are for offline tools.
+ */
+public class ShardedIndex<T> implements NeighborIndex<T> {
+  // below this many points the fork-join overhead outweighs the parallel speedup
+  private static final int MIN_PARALLEL_SIZE = 20000;
+
+  private final NeighborIndex<T>[] shards;
+  private final int sizeLimit;
+  private final ForkJoinPool pool;
+  private long nextSequence;  // sequence number of the next point added
+  private long oldestSequence;  // points before this one have been evicted
+
+  /**
+   * Shards that queries fan out over the pool (if not null), each created with the given payload
+   * width (see NeighborIndex.create). Not for competition.
+   */
+  @SuppressWarnings("unchecked")
+  public ShardedIndex(Type type, int dimensions, int sizeLimit, int numShards, int payloadWidth,
+      ForkJoinPool pool) {
+    this.sizeLimit = sizeLimit;
+    this.pool = pool;
+    shards = (NeighborIndex<T>[])new NeighborIndex<?>[numShards];
+    for (int i = 0; i < numShards; i++) {
+      shards[i] = NeighborIndex.create(
+          type, dimensions, (sizeLimit + numShards - 1) / numShards, payloadWidth);
+    }
+  }
+
+  /** Shards that are searched one after another on the calling thread. */
+  public ShardedIndex(Type type, int dimensions, int sizeLimit, int numShards, int payloadWidth) {
+    this(type, dimensions, sizeLimit, numShards, payloadWidth, null);
+  }
+
+  @Override
+  public void addPoint(double[] location, T value) {
+    if (size() == sizeLimit) {
+      removeOldest();
+    }
+    shards[(int)(nextSequence++ % shards.length)].addPoint(location, value);
+  }
+
+  @Override
+  public void removeOldest() {
+    if (size() > 0) {
+      shards[(int)(oldestSequence++ % shards.length)].removeOldest();
+    }
+  }
+
+  @Override
+  public void flush() {
+    for (NeighborIndex<T> shard : shards) {
+      shard.flush();
+    }
+  }
+
+  @Override
+  public void nearestNeighbor(double[] location, ResultHeap neighbors) {
+    if (pool == null || size() < MIN_PARALLEL_SIZE) {
+      for (NeighborIndex<T> shard : shards) {
+        shard.nearestNeighbor(location, neighbors);
+      }
+      return;
+    }
+
+    int count = neighbors.getMaxCount();
+    AtomicLong bound = new AtomicLong(Double.doubleToLongBits(neighbors.getMaxDist()));
+    SharedBoundHeap[] heaps = new SharedBoundHeap[shards.length];
+    ShardSearch[] searches = new ShardSearch[shards.length];
+    for (int i = 0; i < shards.length; i++) {
+      heaps[i] = new SharedBoundHeap(count, neighbors.getPayloadWidth(), bound);
+      searches[i] = new ShardSearch(shards[i], location, heaps[i]);
+    }
+    pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(searches)));
+    for (SharedBoundHeap heap : heaps) {
+      for (int i = 0; i < heap.getCount(); i++) {
+        neighbors.addValue(heap, i);
+      }
+    }
+  }
+
+  private static class ShardSearch extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final NeighborIndex<?> shard;
+    private final double[] location;
+    private final ResultHeap neighbors;
+
+    ShardSearch(NeighborIndex<?> shard, double[] location, ResultHeap neighbors) {
+      this.shard = shard;
+      this.location = location;
+      this.neighbors = neighbors;
+    }
+
+    @Override
+    protected void compute() {
+      shard.nearestNeighbor(location, neighbors);
+    }
+  }
+
+  /**
+   * A result heap that prunes with the smallest full-heap bound of any shard. Bounds are stored as
+   * the bits of non-negative doubles, which order the same way as the doubles themselves.
+   */
+  private static class SharedBoundHeap extends ResultHeap {
+    private final AtomicLong bound;
+    private double shared = Double.POSITIVE_INFINITY;
+
+    SharedBoundHeap(int size, int payloadWidth, AtomicLong bound) {
+      super(size, payloadWidth);
+      this.bound = bound;
+    }
+
+    @Override
+    public void addValue(double dist, Object value) {
+      super.addValue(dist, value);
+      shareBound();
+    }
+
+    @Override
+    public void addValue(double dist, double[] source, int offset, int width) {
+      super.addValue(dist, source, offset, width);
+      shareBound();
+    }
+
+    private void shareBound() {
+      double maxDist = super.getMaxDist();
+      if (maxDist < shared) {
+        shared = maxDist;
+        bound.accumulateAndGet(Double.doubleToLongBits(maxDist), Math::min);
+      }
+    }
+
+    @Override
+    public double getMaxDist() {
+      return Math.min(super.getMaxDist(), Double.longBitsToDouble(bound.get()));
+    }
+  }
+
+  @Override
+  public List<Entry<T>> rangeSearch(double[] location, double radius) {
+    List<Entry<T>> neighbors = new ArrayList<>();
+    for (NeighborIndex<T> shard : shards) {
+      neighbors.addAll(shard.rangeSearch(location, radius));
+    }
+    return neighbors;
+  }
+
+  @Override
+  public int countWithin(double[] location, double radius) {
+    int count = 0;
+    for (NeighborIndex<T> shard : shards) {
+      count += shard.countWithin(location, radius);
+    }
+    return count;
+  }
+
+  @Override
+  public int size() {
+    return (int)(nextSequence - oldestSequence);
+  }
+
+  /** Parallel queries record into stats from several threads, so counts are approximate. */
+  @Override
+  public void setStats(QueryStats stats) {
+    for (NeighborIndex<T> shard : shards) {
+      shard.setStats(stats);
+    }
+  }
+
+  @Override
+  public void setApproximation(double epsilon) {
+    for (NeighborIndex<T> shard : shards) {
+      shard.setApproximation(epsilon);
+    }
+  }
+}
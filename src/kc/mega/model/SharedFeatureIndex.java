@@ -0,0 +1,312 @@
+package kc.mega.model;
+
+import kc.mega.wave.Feature;
+import kc.mega.wave.WaveWithFeatures;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ags.utils.KdTree.Entry;
+import ags.utils.KdTree.QueryStats;
+import ags.utils.KdTree.ResultHeap;
+
+/**
+ * One store of training points for several linear KNNs that train on the same waves. Like
+ * LinearScanIndex it is a brute-force ring buffer of single-precision points with payload
+ * columns, but each wave's normalized values for the union of the KNNs' features are stored once,
+ * one array per feature. Each KNN queries them through a View, which weights the columns of its
+ * own features by their scales. That gives the same distances as a separate index of scaled
+ * features, and a scan only reads the columns of the view's features, a block of points at a
+ * time. Waves are deduplicated by identity, so every KNN can add each wave it trains on. All KNNs
+ * sharing a store see the same points: the newest ones, up to the store's size limit (which the
+ * MemoryBudget sets for the store as a whole).
+ */
+public class SharedFeatureIndex {
+  private final int capacity;
+  private int sizeLimit;  // at most capacity
+  private final int payloadWidth;
+  private final List<Feature> features = new ArrayList<>();
+  // allocated once the views have registered their features
+  private float[][] columns;  // columns[j][slot] is the j-th feature of the point in slot
+  private double[] payloads;
+  private int oldest;
+  private int size;
+  private long version;  // bumped whenever the stored points change
+  private WaveWithFeatures lastAdded;
+  // the point the last add evicted from a full store, and the version before that add
+  private double[] replaced;
+  private long replacedVersion = -1;
+
+  public SharedFeatureIndex(int capacity, int payloadWidth) {
+    this.capacity = sizeLimit = capacity;
+    this.payloadWidth = payloadWidth;
+  }
+
+  /** The most points this can store, which each KNN sharing it must have as its maxTreeSize. */
+  public int getCapacity() {
+    return capacity;
+  }
+
+  public int getPayloadWidth() {
+    return payloadWidth;
+  }
+
+  /**
+   * Adds the features to the store's and returns a view that queries them with the given
+   * per-feature scales. Views have to be created before any points are added.
+   */
+  public <T> View<T> view(Feature[] features, double[] scales) {
+    if (columns != null) {
+      throw new IllegalStateException("Views must be created before points are added");
+    }
+    for (Feature feature : features) {
+      if (!this.features.contains(feature)) {
+        this.features.add(feature);
+      }
+    }
+    return new View<>(features, scales);
+  }
+
+  /** Adds the wave unless it is the one added last, evicting the oldest points if full. */
+  public void addPoint(WaveWithFeatures w, double[] payload) {
+    if (w == lastAdded) {
+      return;
+    }
+    lastAdded = w;
+    replacedVersion = -1;
+    if (columns == null) {
+      columns = new float[features.size()][capacity];
+      payloads = new double[capacity * payloadWidth];
+      replaced = new double[features.size()];
+    }
+    if (size > 0 && size >= sizeLimit) {
+      for (int j = 0; j < replaced.length; j++) {
+        replaced[j] = columns[j][oldest];
+      }
+      replacedVersion = version;
+      removeOldest();
+    }
+    version++;
+    int slot = (oldest + size++) % capacity;
+    for (int j = 0; j < features.size(); j++) {
+      columns[j][slot] = (float)w.getNormalizedFeature(features.get(j));
+    }
+    System.arraycopy(payload, 0, payloads, slot * payloadWidth, payloadWidth);
+  }
+
+  /** Returns the wave's normalized values for the store's features. */
+  public double[] locate(WaveWithFeatures w) {
+    return locate(w, null);
+  }
+
+  /** Like locate(w), but writes into location if it has the right length. */
+  public double[] locate(WaveWithFeatures w, double[] location) {
+    if (location == null || location.length != features.size()) {
+      location = new double[features.size()];
+    }
+    for (int j = 0; j < location.length; j++) {
+      location[j] = w.getNormalizedFeature(features.get(j));
+    }
+    return location;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /** Stores at most sizeLimit points (up to the capacity), evicting the oldest ones if needed. */
+  public void setSizeLimit(int sizeLimit) {
+    this.sizeLimit = Math.min(sizeLimit, capacity);
+    while (size > this.sizeLimit) {
+      removeOldest();
+    }
+  }
+
+  public int getSizeLimit() {
+    return sizeLimit;
+  }
+
+  /** Roughly how many bytes of heap each stored point takes. */
+  public int getBytesPerPoint() {
+    return 4 * features.size() + 8 * payloadWidth;
+  }
+
+  /** A number that changes whenever points are added or evicted. */
+  public long getVersion() {
+    return version;
+  }
+
+  private void removeOldest() {
+    oldest = (oldest + 1) % capacity;
+    size--;
+    version++;
+  }
+
+  /**
+   * A KNN's index into the store. Locations are those from locate(), not the KNN's own embedding.
+   * Points are added to the store rather than through views.
+   */
+  public class View<T> implements NeighborIndex<T> {
+    // distances are summed over this many points at a time, one feature after another
+    private static final int BLOCK_SIZE = 64;
+
+    // the store's columns for this view's features and their weights
+    private final int[] indices;
+    private final double[] weights;
+    private final double[] blockDists = new double[BLOCK_SIZE];
+    private QueryStats stats;
+    private double approximation = 1;
+
+    private View(Feature[] viewFeatures, double[] scales) {
+      indices = new int[viewFeatures.length];
+      weights = new double[viewFeatures.length];
+      for (int i = 0; i < viewFeatures.length; i++) {
+        indices[i] = features.indexOf(viewFeatures[i]);
+        // |scale * f - scale * g| = |scale| * |f - g|
+        weights[i] = Math.abs(scales[i]);
+      }
+    }
+
+    /** The store this views, whose points (and size limit) all its views share. */
+    public SharedFeatureIndex getStore() {
+      return SharedFeatureIndex.this;
+    }
+
+    public double[] locate(WaveWithFeatures w, double[] location) {
+      return SharedFeatureIndex.this.locate(w, location);
+    }
+
+    public long getVersion() {
+      return version;
+    }
+
+    /**
+     * Returns the point (with the store's features) that the last point added evicted
+     * from the full store, if that add was the only change since the given version, or else null.
+     */
+    public double[] getReplacedPoint(long sinceVersion) {
+      return replacedVersion == sinceVersion && version == sinceVersion + 2 ? replaced : null;
+    }
+
+    /** Adds the wave to the store, unless another view just added it. */
+    public void addPoint(WaveWithFeatures w, double[] payload) {
+      SharedFeatureIndex.this.addPoint(w, payload);
+    }
+
+    @Override
+    public void addPoint(double[] location, T value) {
+      throw new IllegalStateException("Points are added to the SharedFeatureIndex");
+    }
+
+    @Override
+    public void removeOldest() {
+      throw new IllegalStateException("Points are evicted by the SharedFeatureIndex");
+    }
+
+    @Override
+    public void nearestNeighbor(double[] location, ResultHeap neighbors) {
+      long startTime = stats == null ? 0 : System.nanoTime();
+      // the live points wrap around the end of the ring
+      int end = oldest + size;
+      nearest(location, neighbors, oldest, Math.min(end, capacity));
+      nearest(location, neighbors, 0, end - capacity);
+      if (stats != null) {
+        stats.record(1, size > 0 ? 1 : 0, size, neighbors.replacements,
+            System.nanoTime() - startTime);
+      }
+    }
+
+    private void nearest(double[] location, ResultHeap neighbors, int from, int to) {
+      for (int start = from; start < to; start += BLOCK_SIZE) {
+        int count = Math.min(BLOCK_SIZE, to - start);
+        Arrays.fill(blockDists, 0, count, 0);
+        for (int j = 0; j < indices.length; j++) {
+          float[] column = columns[indices[j]];
+          double value = location[indices[j]];
+          double weight = weights[j];
+          for (int b = 0; b < count; b++) {
+            blockDists[b] += Math.abs(column[start + b] - value) * weight;
+          }
+        }
+        // points must be 1 + epsilon times nearer than the k-th nearest to replace it
+        double range = neighbors.getMaxDist() / approximation;
+        for (int b = 0; b < count; b++) {
+          double dist = Double.isNaN(blockDists[b]) ? dist(start + b, location) : blockDists[b];
+          if (dist < range) {
+            neighbors.addValue(dist, payloads, (start + b) * payloadWidth, payloadWidth);
+            range = neighbors.getMaxDist() / approximation;
+          }
+        }
+      }
+    }
+
+    /** The distance queries measure from a point with the store's features to location. */
+    public double distance(double[] point, double[] location) {
+      double dist = 0;
+      for (int j = 0; j < indices.length; j++) {
+        double diff = (float)point[indices[j]] - location[indices[j]];
+        if (!Double.isNaN(diff)) {
+          dist += Math.abs(diff) * weights[j];
+        }
+      }
+      return dist;
+    }
+
+    /** The distance to the point in slot, skipping features where either point is NaN. */
+    private double dist(int slot, double[] location) {
+      double dist = 0;
+      for (int j = 0; j < indices.length; j++) {
+        double diff = columns[indices[j]][slot] - location[indices[j]];
+        if (!Double.isNaN(diff)) {
+          dist += Math.abs(diff) * weights[j];
+        }
+      }
+      return dist;
+    }
+
+    @Override
+    public List<Entry<T>> rangeSearch(double[] location, double radius) {
+      List<Entry<T>> neighbors = new ArrayList<>();
+      for (int j = 0; j < size; j++) {
+        int slot = (oldest + j) % capacity;
+        double dist = dist(slot, location);
+        if (dist <= radius) {
+          neighbors.add(new Entry<>(dist, valueAt(slot)));
+        }
+      }
+      return neighbors;
+    }
+
+    @SuppressWarnings("unchecked")
+    private T valueAt(int slot) {
+      return (T)Arrays.copyOfRange(payloads, slot * payloadWidth, (slot + 1) * payloadWidth);
+    }
+
+    @Override
+    public int countWithin(double[] location, double radius) {
+      int count = 0;
+      for (int j = 0; j < size; j++) {
+        if (dist((oldest + j) % capacity, location) <= radius) {
+          count++;
+        }
+      }
+      return count;
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+
+    @Override
+    public void setStats(QueryStats stats) {
+      this.stats = stats;
+    }
+
+    @Override
+    public void setApproximation(double epsilon) {
+      this.approximation = 1 + epsilon;
+    }
+  }
+}
@@ -0,0 +1,387 @@
+package kc.mega.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import ags.utils.KdTree.Entry;
+import ags.utils.KdTree.QueryStats;
+import ags.utils.KdTree.ResultHeap;
+
+/**
+ * Neighbor index backed by a vantage-point tree. Each node splits its points by whether they are
+ * nearer or farther than the median distance from a vantage point, so pruning uses whole L1
+ * distances instead of single coordinates, which holds up better than a KD tree in high dimensions.
+ *
+ * A VP-tree can't be updated in place, so new points go into a buffer that is scanned linearly
+ * and evicted points are skipped by sequence number. The tree is rebuilt from the live points once
+ * the buffer outgrows a few times the square root of the tree size, which balances the O(n log n)
+ * rebuilds against the cost of scanning the buffer. Dimensions where either point is NaN are
+ * skipped as in KdTree.Manhattan, which breaks the triangle inequality, so queries near NaN
+ * coordinates may miss some neighbors. With a payload width, double[] values are copied into
+ * payload columns alongside the points instead of being stored as objects.
+ */
+public class VPTreeIndex<T> implements NeighborIndex<T> {
+  private static final int BUCKET_SIZE = 16;
+  private static final int MIN_BUFFER_LIMIT = 64;
+  private static final int BUFFER_LIMIT_PER_SQRT_POINT = 8;
+
+  private final int dimensions;
+  private final int sizeLimit;
+  private final int payloadWidth;
+  private final Random random = new Random(0);
+
+  // Tree points in tree order. Position lo of a range [lo, hi) bigger than a bucket holds its
+  // vantage point and radii[lo] the median distance to it. The rest of the range holds the inner
+  // half (distance <= radius) followed by the outer half (distance >= radius).
+  private float[] treePoints = new float[0];
+  private Object[] treeData = new Object[0];
+  private double[] treePayloads = new double[0];
+  private long[] treeSequence = new long[0];
+  private double[] radii = new double[0];
+  private int treeSize;
+  private long treeFirstSequence;
+
+  // points added since the last rebuild, in insertion order
+  private float[] bufferPoints;
+  private Object[] bufferData;
+  private double[] bufferPayloads;
+  private int bufferSize;
+
+  private long nextSequence;  // sequence number of the next point added
+  private long oldestSequence;  // points before this one have been evicted
+
+  private QueryStats stats;
+  private int nodesVisited, leavesScanned, distances;
+
+  public VPTreeIndex(int dimensions, int sizeLimit) {
+    this(dimensions, sizeLimit, 0);
+  }
+
+  public VPTreeIndex(int dimensions, int sizeLimit, int payloadWidth) {
+    this.dimensions = dimensions;
+    this.sizeLimit = sizeLimit;
+    this.payloadWidth = payloadWidth;
+    bufferPoints = new float[MIN_BUFFER_LIMIT * dimensions];
+    bufferData = new Object[MIN_BUFFER_LIMIT];
+    bufferPayloads = new double[MIN_BUFFER_LIMIT * payloadWidth];
+  }
+
+  @Override
+  public void addPoint(double[] location, T value) {
+    if (size() == sizeLimit) {
+      removeOldest();
+    }
+    if (bufferSize == bufferData.length) {
+      bufferPoints = Arrays.copyOf(bufferPoints, bufferPoints.length * 2);
+      bufferData = Arrays.copyOf(bufferData, bufferData.length * 2);
+      bufferPayloads = Arrays.copyOf(bufferPayloads, bufferPayloads.length * 2);
+    }
+    for (int j = 0, offset = bufferSize * dimensions; j < dimensions; j++) {
+      bufferPoints[offset + j] = (float)location[j];
+    }
+    if (payloadWidth > 0) {
+      System.arraycopy(
+          (double[])value, 0, bufferPayloads, bufferSize * payloadWidth, payloadWidth);
+    } else {
+      bufferData[bufferSize] = value;
+    }
+    bufferSize++;
+    nextSequence++;
+
+    int bufferLimit = Math.max(MIN_BUFFER_LIMIT,
+        BUFFER_LIMIT_PER_SQRT_POINT * (int)Math.sqrt(treeSize));
+    if (bufferSize > bufferLimit || deadTreePoints() > treeSize / 2) {
+      rebuild();
+    }
+  }
+
+  @Override
+  public void removeOldest() {
+    if (size() > 0) {
+      oldestSequence++;
+    }
+  }
+
+  private int deadTreePoints() {
+    return (int)Math.min(treeSize, Math.max(0, oldestSequence - treeFirstSequence));
+  }
+
+  /** Index of the first buffered point that hasn't been evicted. */
+  private int firstLiveBufferPoint() {
+    return (int)Math.max(0, oldestSequence - (treeFirstSequence + treeSize));
+  }
+
+  /** Rebuilds the tree from the live points in the tree and the buffer. */
+  private void rebuild() {
+    int count = size();
+    float[] points = new float[count * dimensions];
+    Object[] data = new Object[count];
+    double[] payloads = new double[count * payloadWidth];
+    long[] sequence = new long[count];
+    int j = 0;
+    for (int i = 0; i < treeSize; i++) {
+      if (treeSequence[i] >= oldestSequence) {
+        System.arraycopy(treePoints, i * dimensions, points, j * dimensions, dimensions);
+        System.arraycopy(treePayloads, i * payloadWidth, payloads, j * payloadWidth, payloadWidth);
+        data[j] = treeData[i];
+        sequence[j++] = treeSequence[i];
+      }
+    }
+    long bufferFirstSequence = treeFirstSequence + treeSize;
+    for (int i = firstLiveBufferPoint(); i < bufferSize; i++) {
+      System.arraycopy(bufferPoints, i * dimensions, points, j * dimensions, dimensions);
+      System.arraycopy(
+          bufferPayloads, i * payloadWidth, payloads, j * payloadWidth, payloadWidth);
+      data[j] = bufferData[i];
+      sequence[j++] = bufferFirstSequence + i;
+    }
+
+    int[] order = new int[count];
+    for (int i = 0; i < count; i++) {
+      order[i] = i;
+    }
+    radii = new double[count];
+    build(points, order, new double[count], new double[dimensions], 0, count);
+
+    treePoints = new float[count * dimensions];
+    treeData = new Object[count];
+    treePayloads = new double[count * payloadWidth];
+    treeSequence = new long[count];
+    for (int i = 0; i < count; i++) {
+      System.arraycopy(points, order[i] * dimensions, treePoints, i * dimensions, dimensions);
+      System.arraycopy(
+          payloads, order[i] * payloadWidth, treePayloads, i * payloadWidth, payloadWidth);
+      treeData[i] = data[order[i]];
+      treeSequence[i] = sequence[order[i]];
+    }
+    treeSize = count;
+    treeFirstSequence = oldestSequence;
+    Arrays.fill(bufferData, 0, bufferSize, null);
+    bufferSize = 0;
+  }
+
+  /**
+   * Arranges order[lo..hi) into a VP-tree. keys is scratch space for distances to the vantage
+   * point and vantage for its coordinates.
+   */
+  private void build(
+      float[] points, int[] order, double[] keys, double[] vantage, int lo, int hi) {
+    if (hi - lo <= BUCKET_SIZE) {
+      return;
+    }
+    swap(keys, order, lo, lo + random.nextInt(hi - lo));
+    for (int j = 0; j < dimensions; j++) {
+      vantage[j] = points[order[lo] * dimensions + j];
+    }
+    for (int i = lo + 1; i < hi; i++) {
+      keys[i] = dist(points, order[i] * dimensions, vantage);
+    }
+    int mid = lo + 1 + (hi - lo - 1) / 2;
+    select(keys, order, lo + 1, hi, mid);
+    radii[lo] = keys[mid];
+    build(points, order, keys, vantage, lo + 1, mid);
+    build(points, order, keys, vantage, mid, hi);
+  }
+
+  @Override
+  public void nearestNeighbor(double[] location, ResultHeap resultHeap) {
+    long startTime = stats == null ? 0 : System.nanoTime();
+    nodesVisited = leavesScanned = distances = 0;
+    // scan the buffer first so the tree search starts with a bound
+    double range = resultHeap.getMaxDist();
+    for (int i = firstLiveBufferPoint(); i < bufferSize; i++) {
+      double dist = dist(bufferPoints, i * dimensions, location);
+      distances++;
+      if (dist < range) {
+        addValue(resultHeap, dist, bufferData, bufferPayloads, i);
+        range = resultHeap.getMaxDist();
+      }
+    }
+    nearest(location, resultHeap, 0, treeSize);
+    if (stats != null) {
+      stats.record(nodesVisited, leavesScanned, distances, resultHeap.replacements,
+          System.nanoTime() - startTime);
+    }
+  }
+
+  private void nearest(double[] location, ResultHeap resultHeap, int lo, int hi) {
+    nodesVisited++;
+    if (hi - lo <= BUCKET_SIZE) {
+      leavesScanned++;
+      double range = resultHeap.getMaxDist();
+      for (int i = lo; i < hi; i++) {
+        if (treeSequence[i] >= oldestSequence) {
+          double dist = dist(treePoints, i * dimensions, location);
+          distances++;
+          if (dist < range) {
+            addValue(resultHeap, dist, treeData, treePayloads, i);
+            range = resultHeap.getMaxDist();
+          }
+        }
+      }
+      return;
+    }
+
+    double dist = dist(treePoints, lo * dimensions, location);
+    distances++;
+    if (treeSequence[lo] >= oldestSequence && dist < resultHeap.getMaxDist()) {
+      addValue(resultHeap, dist, treeData, treePayloads, lo);
+    }
+    int mid = lo + 1 + (hi - lo - 1) / 2;
+    double radius = radii[lo];
+    // visit the side the location is on first, then the other if the bound still reaches it
+    if (dist <= radius) {
+      nearest(location, resultHeap, lo + 1, mid);
+      if (dist + resultHeap.getMaxDist() >= radius) {
+        nearest(location, resultHeap, mid, hi);
+      }
+    } else {
+      nearest(location, resultHeap, mid, hi);
+      if (dist - resultHeap.getMaxDist() <= radius) {
+        nearest(location, resultHeap, lo + 1, mid);
+      }
+    }
+  }
+
+  /** Adds the i-th of the given values (or payload rows) to a result heap. */
+  private void addValue(
+      ResultHeap resultHeap, double dist, Object[] data, double[] payloads, int i) {
+    if (payloadWidth > 0) {
+      resultHeap.addValue(dist, payloads, i * payloadWidth, payloadWidth);
+    } else {
+      resultHeap.addValue(dist, data[i]);
+    }
+  }
+
+  /** Returns the i-th of the given values, or a copy of its payload row. */
+  @SuppressWarnings("unchecked")
+  private T valueAt(Object[] data, double[] payloads, int i) {
+    return payloadWidth > 0 ?
+        (T)Arrays.copyOfRange(payloads, i * payloadWidth, (i + 1) * payloadWidth) : (T)data[i];
+  }
+
+  @Override
+  public List<Entry<T>> rangeSearch(double[] location, double radius) {
+    List<Entry<T>> neighbors = new ArrayList<>();
+    for (int i = firstLiveBufferPoint(); i < bufferSize; i++) {
+      double dist = dist(bufferPoints, i * dimensions, location);
+      if (dist <= radius) {
+        neighbors.add(new Entry<>(dist, valueAt(bufferData, bufferPayloads, i)));
+      }
+    }
+    withinRange(location, radius, neighbors, 0, treeSize);
+    return neighbors;
+  }
+
+  private void withinRange(
+      double[] location, double radius, List<Entry<T>> neighbors, int lo, int hi) {
+    if (hi - lo <= BUCKET_SIZE) {
+      for (int i = lo; i < hi; i++) {
+        if (treeSequence[i] >= oldestSequence) {
+          double dist = dist(treePoints, i * dimensions, location);
+          if (dist <= radius) {
+            neighbors.add(new Entry<>(dist, valueAt(treeData, treePayloads, i)));
+          }
+        }
+      }
+      return;
+    }
+
+    double dist = dist(treePoints, lo * dimensions, location);
+    if (treeSequence[lo] >= oldestSequence && dist <= radius) {
+      neighbors.add(new Entry<>(dist, valueAt(treeData, treePayloads, lo)));
+    }
+    int mid = lo + 1 + (hi - lo - 1) / 2;
+    if (dist - radius <= radii[lo]) {
+      withinRange(location, radius, neighbors, lo + 1, mid);
+    }
+    if (dist + radius >= radii[lo]) {
+      withinRange(location, radius, neighbors, mid, hi);
+    }
+  }
+
+  @Override
+  public int countWithin(double[] location, double radius) {
+    int count = 0;
+    for (int i = firstLiveBufferPoint(); i < bufferSize; i++) {
+      if (dist(bufferPoints, i * dimensions, location) <= radius) {
+        count++;
+      }
+    }
+    return count + countWithin(location, radius, 0, treeSize);
+  }
+
+  private int countWithin(double[] location, double radius, int lo, int hi) {
+    if (hi - lo <= BUCKET_SIZE) {
+      int count = 0;
+      for (int i = lo; i < hi; i++) {
+        if (treeSequence[i] >= oldestSequence &&
+            dist(treePoints, i * dimensions, location) <= radius) {
+          count++;
+        }
+      }
+      return count;
+    }
+
+    double dist = dist(treePoints, lo * dimensions, location);
+    int count = treeSequence[lo] >= oldestSequence && dist <= radius ? 1 : 0;
+    int mid = lo + 1 + (hi - lo - 1) / 2;
+    if (dist - radius <= radii[lo]) {
+      count += countWithin(location, radius, lo + 1, mid);
+    }
+    if (dist + radius >= radii[lo]) {
+      count += countWithin(location, radius, mid, hi);
+    }
+    return count;
+  }
+
+  private double dist(float[] points, int offset, double[] location) {
+    return NeighborIndex.distance(points, offset, location, dimensions);
+  }
+
+  /** Reorders keys[lo..hi) (and order alongside it) so keys[k] is the k-th smallest key. */
+  private static void select(double[] keys, int[] order, int lo, int hi, int k) {
+    hi--;
+    while (hi > lo) {
+      double pivot = keys[(lo + hi) >>> 1];
+      int i = lo, j = hi;
+      while (i <= j) {
+        while (keys[i] < pivot) i++;
+        while (keys[j] > pivot) j--;
+        if (i <= j) {
+          swap(keys, order, i, j);
+          i++;
+          j--;
+        }
+      }
+      if (k <= j) {
+        hi = j;
+      } else if (k >= i) {
+        lo = i;
+      } else {
+        return;
+      }
+    }
+  }
+
+  private static void swap(double[] keys, int[] order, int i, int j) {
+    double key = keys[i];
+    keys[i] = keys[j];
+    keys[j] = key;
+    int k = order[i];
+    order[i] = order[j];
+    order[j] = k;
+  }
+
+  @Override
+  public int size() {
+    return (int)(nextSequence - oldestSequence);
+  }
+
+  @Override
+  public void setStats(QueryStats stats) {
+    this.stats = stats;
+  }
+}
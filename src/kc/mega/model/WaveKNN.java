@@ -1,27 +1,66 @@
 package kc.mega.model;
 
 import kc.mega.utils.MathUtils;
+import kc.mega.wave.Feature;
 import kc.mega.wave.WaveWithFeatures;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 
-import ags.utils.KdTree;
 import ags.utils.KdTree.Entry;
-import jk.math.FastTrig;
+import ags.utils.KdTree.QueryStats;
+import ags.utils.KdTree.ResultHeap;
 
-/** KNN lookup for featurized waves built on top of Rednaxela's KD Tree implementation. */
+/** KNN lookup for featurized waves built on top of a nearest neighbor index. */
 public class WaveKNN<T> {
-  private final KdTree<T> tree;
-  private final String[] features;
+  // Brute-force scans beat the KD tree on small, higher-dimensional datasets. Benchmarked with
+  // k=50 the crossover is around 700 points per dimension (e.g., ~5000 points at 8 dimensions)
+  // and the tree always wins below 6 dimensions.
+  private static final int LINEAR_SCAN_MIN_DIMENSIONS = 6;
+  private static final int LINEAR_SCAN_MAX_POINTS_PER_DIMENSION = 700;
+  // KD tree inserts go through a buffer this big so splits happen in bulk (see BufferedIndex)
+  private static final int DEFAULT_INSERT_BUFFER_SIZE = 64;
+  // results are memoized for this many recently queried waves (more if a batch needs it)
+  private static final int CACHED_WAVES = 8;
+
+  private final NeighborIndex<T> index;
+  private final SharedFeatureIndex.View<T> sharedView;  // null unless the points are shared
+  private final int capacity;
+  private final int payloadWidth;
+  private final int storedPayloadWidth;
+  private int sizeLimit;  // at most capacity; lowered by the MemoryBudget
+  // bumped whenever the stored points change, so memoized results can be checked
+  private long version;
+  // memoized results for recently queried waves, most recently used first (null in snapshots)
+  private WaveCache[] caches;
+  // where embeddings of waves without a cache are computed
+  private double[] scratchEmbedding;
+  // reused heaps that bound searches at the weight cutoff (see CutoffHeap)
+  private CutoffHeap[] cutoffHeaps = new CutoffHeap[0];
+  // a point rounded to single precision like the index stores it, for distance()
+  private float[] scratchPoint;
+  // whether new points are merged into near-identical stored ones, whose multiplicity is kept as
+  // an extra payload column after the others
+  private final boolean coalesced;
+  private final CoalesceTarget coalesceTarget;  // null if not coalescing, or in snapshots
+  private final double[] coalescedValue;
+  // total multiplicity of the stored points (equal to the size if they aren't coalesced)
+  private double trainingPoints;
+  private final Feature[] features;
+  // whether some features (didHit, didCollide) can change while a wave is in flight
+  private final boolean hasLiveFeatures;
+  // whether cached neighbors can be updated for an inserted point (see updateNeighbors())
+  private final boolean updatable;
+  // each row is {scale} for a linear feature or {scale, offset, exponent} for a power transform
   private final double[][] params;
   private final double distanceScale;
+  private final double weightCutoffDistance;
   private final int maxNeighbors;
   private final double neighborhoodSizeDivider;
   private final List<double[][]> neuralNet;
-  private final List<double[]> activations;
+  // each neural net layer's activations, reused by computeEmbedding() (null in snapshots)
+  private final double[][] layerOutputs;
 
   public static class Builder<T> {
     private String[] features;
@@ -31,6 +70,16 @@ public class WaveKNN<T> {
     private int maxNeighbors;
     private int maxTreeSize = 50000;
     private String neuralNet;
+    private NeighborIndex.Type indexType;
+    private double minRelativeWeight;
+    private int insertBufferSize = -1;
+    private int shards = 1;
+    private int projectedDimensions;
+    private int payloadWidth;
+    private double coalesceRadius;
+    private double coalesceTolerance;
+    private double approximation;
+    private SharedFeatureIndex shared;
 
     public Builder<T> features(String[] val) {features = val; return this;}
     public Builder<T> params(double[][] val) {params = val; return this;}
@@ -39,18 +88,101 @@ public class WaveKNN<T> {
     public Builder<T> maxNeighbors(int val) {maxNeighbors = val; return this;}
     public Builder<T> maxTreeSize(int val) {maxTreeSize = val; return this;}
     public Builder<T> nn(String val) {neuralNet = val; return this;}
+    public Builder<T> index(NeighborIndex.Type val) {indexType = val; return this;}
+    public Builder<T> minRelativeWeight(double val) {minRelativeWeight = val; return this;}
+    public Builder<T> insertBufferSize(int val) {insertBufferSize = val; return this;}
+    public Builder<T> shards(int val) {shards = val; return this;}
+    public Builder<T> projection(int val) {projectedDimensions = val; return this;}
+    public Builder<T> payloads(int val) {payloadWidth = val; return this;}
+    public Builder<T> coalesce(double radius, double tolerance) {
+      coalesceRadius = radius; coalesceTolerance = tolerance; return this;}
+    public Builder<T> approximation(double epsilon) {approximation = epsilon; return this;}
+    public Builder<T> shared(SharedFeatureIndex val) {shared = val; return this;}
     public WaveKNN<T> build() {return new WaveKNN<T>(this);}
   }
 
   public WaveKNN(Builder<T> builder) {
-    tree = new KdTree.Manhattan<>(builder.features.length, builder.maxTreeSize);
-    this.features = builder.features;
-    this.params = builder.params;
+    int dimensions = builder.features.length;
+    NeighborIndex.Type indexType = builder.indexType;
+    if (indexType == null) {
+      // a projection leaves few dimensions, where the KD tree always wins
+      indexType = builder.projectedDimensions > 0 ? NeighborIndex.Type.KD_TREE :
+          dimensions >= LINEAR_SCAN_MIN_DIMENSIONS &&
+          builder.maxTreeSize <= LINEAR_SCAN_MAX_POINTS_PER_DIMENSION * dimensions ?
+          NeighborIndex.Type.LINEAR_SCAN : NeighborIndex.Type.KD_TREE;
+    }
+    NeighborIndex<T> index;
+    if (builder.coalesceRadius > 0 && builder.payloadWidth == 0) {
+      throw new IllegalStateException("Only KNNs with payloads can coalesce points");
+    }
+    if (builder.coalesceRadius > 0 && indexType == NeighborIndex.Type.COMPILED_KD_TREE) {
+      // merging updates payloads in place, which snapshots of the index may be reading
+      throw new IllegalStateException("COMPILED_KD_TREE indexes can't coalesce points");
+    }
+    int storedPayloadWidth = builder.payloadWidth + (builder.coalesceRadius > 0 ? 1 : 0);
+    this.features = new Feature[dimensions];
+    this.params = new double[dimensions][];
+    for (int i = 0; i < dimensions; i++) {
+      features[i] = Feature.withKey(builder.features[i]);
+      double[] param = builder.params[i];
+      // fold in the power transform's smoothing constant once instead of on every embed
+      params[i] = param.length == 1 ? param : new double[] {param[0], 1e-4 + param[1], param[2]};
+    }
+    SharedFeatureIndex.View<T> sharedView =
+        builder.shared != null ? createSharedView(builder) : null;
+    if (sharedView != null) {
+      index = sharedView;
+    } else if (builder.projectedDimensions > 0) {
+      index = new ProjectedIndex<>(indexType, dimensions, builder.projectedDimensions,
+          builder.maxTreeSize, storedPayloadWidth);
+    } else if (builder.shards > 1) {
+      index = new ShardedIndex<>(
+          indexType, dimensions, builder.maxTreeSize, builder.shards, storedPayloadWidth);
+    } else {
+      index = NeighborIndex.create(
+          indexType, dimensions, builder.maxTreeSize, storedPayloadWidth);
+    }
+    // shared stores are brute-force scans, which don't need inserts batched
+    int insertBufferSize = builder.shared != null ? 0 :
+        builder.insertBufferSize >= 0 ? builder.insertBufferSize :
+        indexType == NeighborIndex.Type.KD_TREE ? DEFAULT_INSERT_BUFFER_SIZE : 0;
+    if (insertBufferSize > 0) {
+      index = new BufferedIndex<>(
+          index, dimensions, builder.maxTreeSize, insertBufferSize, storedPayloadWidth);
+    }
+    index.setApproximation(builder.approximation);
+    this.index = index;
+    this.sharedView = sharedView;
+    this.capacity = sizeLimit = builder.maxTreeSize;
+    this.payloadWidth = builder.payloadWidth;
+    this.storedPayloadWidth = storedPayloadWidth;
+    this.coalesced = builder.coalesceRadius > 0;
+    if (builder.coalesceRadius > 0) {
+      coalesceTarget = new CoalesceTarget(
+          builder.coalesceRadius, builder.coalesceTolerance, payloadWidth);
+      coalescedValue = new double[storedPayloadWidth];
+    } else {
+      coalesceTarget = null;
+      coalescedValue = null;
+    }
+    this.hasLiveFeatures = Arrays.asList(features).contains(Feature.DID_HIT) ||
+        Arrays.asList(features).contains(Feature.DID_COLLIDE);
     this.distanceScale = builder.distanceScale;
+    // neighbors this much farther than the nearest one get under minRelativeWeight of its weight
+    this.weightCutoffDistance = builder.minRelativeWeight > 0 && distanceScale < 0 ?
+        Math.log(builder.minRelativeWeight) / distanceScale : Double.POSITIVE_INFINITY;
     this.maxNeighbors = builder.maxNeighbors;
     this.neighborhoodSizeDivider = builder.neighborhoodSizeDivider;
+    caches = new WaveCache[CACHED_WAVES];
+    for (int i = 0; i < caches.length; i++) {
+      caches[i] = new WaveCache();
+    }
+    // distance() measures what the unprojected KD tree and linear scan indexes (and shared ones) do
+    this.updatable = !coalesced && !hasLiveFeatures &&
+        weightCutoffDistance == Double.POSITIVE_INFINITY && (sharedView != null ||
+        builder.projectedDimensions == 0 && builder.shards <= 1 &&
+        (indexType == NeighborIndex.Type.KD_TREE || indexType == NeighborIndex.Type.LINEAR_SCAN));
     neuralNet = new ArrayList<>();
-    activations = new ArrayList<>();
     if (builder.neuralNet != null) {
       for (String matrixData: builder.neuralNet.split("\n")) {
         String[] rows = matrixData.split(",");
@@ -62,49 +194,663 @@ public class WaveKNN<T> {
           }
         }
         neuralNet.add(M);
-        activations.add(new double[M[0].length]);
       }
     }
+    layerOutputs = newLayerOutputs();
+  }
+
+  /**
+   * Returns a view of the builder's shared store. Only plain linear KNNs with the store's capacity
+   * and payload width can share one, since the store holds unscaled features and evicts for all
+   * of them at once.
+   */
+  private SharedFeatureIndex.View<T> createSharedView(Builder<T> builder) {
+    SharedFeatureIndex shared = builder.shared;
+    if (builder.projectedDimensions > 0 || builder.shards > 1 || builder.coalesceRadius > 0 ||
+        builder.neuralNet != null) {
+      throw new IllegalStateException(
+          "Shared KNNs can't be projected, sharded, coalesced, or use a neural net");
+    }
+    if (builder.maxTreeSize != shared.getCapacity() ||
+        builder.payloadWidth != shared.getPayloadWidth()) {
+      throw new IllegalStateException("KNNs sharing points need the store's size and payloads");
+    }
+    double[] scales = new double[features.length];
+    for (int i = 0; i < features.length; i++) {
+      if (params[i].length != 1) {
+        throw new IllegalStateException("Shared KNNs can only scale features linearly");
+      }
+      scales[i] = params[i][0];
+    }
+    return shared.view(features, scales);
   }
 
+  /** A read-only copy of knn that queries the given snapshot of its index. */
+  private WaveKNN(WaveKNN<T> knn, NeighborIndex<T> index) {
+    this.index = index;
+    this.sharedView = knn.sharedView;
+    this.features = knn.features;
+    this.hasLiveFeatures = knn.hasLiveFeatures;
+    this.updatable = knn.updatable;
+    this.params = knn.params;
+    this.distanceScale = knn.distanceScale;
+    this.weightCutoffDistance = knn.weightCutoffDistance;
+    this.maxNeighbors = knn.maxNeighbors;
+    this.neighborhoodSizeDivider = knn.neighborhoodSizeDivider;
+    this.neuralNet = knn.neuralNet;
+    this.layerOutputs = null;  // snapshots may embed waves on several threads at once
+    this.capacity = knn.capacity;
+    this.payloadWidth = knn.payloadWidth;
+    this.storedPayloadWidth = knn.storedPayloadWidth;
+    this.coalesced = knn.coalesced;
+    this.sizeLimit = knn.sizeLimit;
+    this.version = knn.version;
+    this.trainingPoints = knn.trainingPoints;
+    this.coalesceTarget = null;  // snapshots are read-only
+    this.coalescedValue = null;
+    this.caches = null;  // and may be queried from several threads, so don't memoize anything
+  }
+
+  /**
+   * Returns a read-only view of this KNN as it is now that other threads can query while it keeps
+   * training. Requires an index that supports snapshots, such as COMPILED_KD_TREE. Snapshots
+   * don't memoize results, so their queries don't write anything shared, but the KNN itself
+   * isn't thread-safe. Waves from the robot thread need WaveWithFeatures.computeFeatures()
+   * called on them before other threads query with them.
+   */
+  public WaveKNN<T> snapshot() {
+    return new WaveKNN<>(this, index.snapshot());
+  }
+
+  @SuppressWarnings("unchecked")
   public void addPoint(WaveWithFeatures w, T value) {
-    tree.addPoint(embed(w), value);
+    if (sharedView != null) {
+      sharedView.addPoint(w, (double[])value);
+      return;
+    }
+    double[] location = locate(w);
+    version++;
+    trainingPoints++;
+    if (coalesceTarget != null) {
+      double[] payload = (double[])value;
+      if (coalesceTarget.find(index, location, payload)) {
+        coalesceTarget.merge();
+        return;
+      }
+      System.arraycopy(payload, 0, coalescedValue, 0, payloadWidth);
+      coalescedValue[payloadWidth] = 1;
+      value = (T)coalescedValue;
+    }
+    // evict before a full index would do it itself, so the eviction changes the version too
+    if (index.size() > 0 && index.size() >= sizeLimit) {
+      removeOldest();
+    }
+    index.addPoint(location, value);
+  }
+
+  private void removeOldest() {
+    // the evicted point's multiplicity isn't known, so assume it is average
+    trainingPoints -= trainingPoints / index.size();
+    index.removeOldest();
+    version++;
+  }
+
+  /**
+   * A number that changes whenever the stored points do, so results computed from them can be
+   * checked to still be up to date.
+   */
+  public long getVersion() {
+    return sharedView != null ? sharedView.getVersion() : version;
+  }
+
+  /**
+   * What a KNN memoizes for a recently queried wave: its embedding and its latest neighbors, which
+   * are reused until points are added or evicted. A wave's features don't change in flight,
+   * except for live ones, so its embedding is only recomputed (and compared to the cached one) if
+   * the KNN uses them. Caches are pooled by the KNN and reused, arrays and all, for new waves.
+   */
+  private static class WaveCache {
+    WaveWithFeatures wave;  // null if not used yet
+    double[] embedding;
+    long version;  // of the points the neighbors were found among
+    int numNeighbors;  // the number of neighbors asked for, or 0 if there are none cached
+    ResultHeap neighbors;
+    NeighborSearch search;  // kept to be restarted for later waves
+    boolean searching;  // whether search was started for this embedding and version
+  }
+
+  /**
+   * Returns the wave's cache, cleared of results that are out of date. A wave without one takes
+   * over the least recently used cache. Snapshots get a new one that isn't kept.
+   */
+  private WaveCache getCache(WaveWithFeatures w) {
+    if (caches == null) {
+      WaveCache cache = new WaveCache();
+      cache.embedding = computeEmbedding(w, null);
+      return cache;
+    }
+    int i = findCache(w);
+    WaveCache cache = caches[i < 0 ? caches.length - 1 : i];
+    if (i < 0) {
+      cache.wave = w;
+      cache.embedding = computeEmbedding(w, cache.embedding);
+      cache.numNeighbors = 0;
+      cache.searching = false;
+    } else if (hasLiveFeatures) {
+      scratchEmbedding = computeEmbedding(w, scratchEmbedding);
+      if (!Arrays.equals(scratchEmbedding, cache.embedding)) {
+        double[] embedding = cache.embedding;
+        cache.embedding = scratchEmbedding;
+        scratchEmbedding = embedding;
+        cache.numNeighbors = 0;
+        cache.searching = false;
+      }
+    }
+    System.arraycopy(caches, 0, caches, 1, i < 0 ? caches.length - 1 : i);
+    caches[0] = cache;
+    if (cache.version != getVersion()) {
+      cache.version = getVersion();
+      cache.numNeighbors = 0;
+      cache.searching = false;
+    }
+    return cache;
+  }
+
+  /** Returns the index of the wave's cache, or -1 if it has none. */
+  private int findCache(WaveWithFeatures w) {
+    for (int i = 0; caches != null && i < caches.length; i++) {
+      if (caches[i].wave == w) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /** Makes room to cache at least count waves at once. */
+  private void reserveCaches(int count) {
+    if (caches != null && caches.length < count) {
+      int oldLength = caches.length;
+      caches = Arrays.copyOf(caches, count);
+      for (int i = oldLength; i < count; i++) {
+        caches[i] = new WaveCache();
+      }
+    }
+  }
+
+  /** Memoizes the neighbors just found for the cache's wave. */
+  private void cacheNeighbors(WaveCache cache, int numNeighbors, ResultHeap neighbors) {
+    if (caches == null) {
+      return;
+    }
+    if (cache.neighbors == null) {
+      cache.neighbors = newNeighborHeap();
+    }
+    copyNeighbors(neighbors, cache.neighbors);
+    cache.numNeighbors = numNeighbors;
+  }
+
+  /**
+   * Copies the neighbors in from into to. Adding a heap's values in array order never moves
+   * them, so the copy has the same layout and sums over it come out bitwise identical.
+   */
+  private static void copyNeighbors(ResultHeap from, ResultHeap to) {
+    to.reset(from.getMaxCount());
+    for (int i = 0; i < from.getCount(); i++) {
+      to.addValue(from, i);
+    }
+  }
+
+  /**
+   * A result heap that looks for the nearest stored point within radius of a new one whose payload
+   * columns are all within tolerance of the new point's. Indexes that store payloads hand heaps
+   * their own payload rows, so the point found can be merged into in place: its payload becomes
+   * the multiplicity-weighted average and its multiplicity goes up by one.
+   */
+  private static class CoalesceTarget extends ResultHeap {
+    private final double radius;
+    private final double tolerance;
+    private final int width;
+    private double[] payload;
+    private double[] rows;
+    private int offset;
+    private double bestDist;
+
+    CoalesceTarget(double radius, double tolerance, int width) {
+      super(0);
+      this.radius = radius;
+      this.tolerance = tolerance;
+      this.width = width;
+    }
+
+    boolean find(NeighborIndex<?> index, double[] location, double[] payload) {
+      this.payload = payload;
+      rows = null;
+      bestDist = radius;
+      index.nearestNeighbor(location, this);
+      return rows != null;
+    }
+
+    @Override
+    public void addValue(double dist, double[] source, int offset, int width) {
+      if (dist > bestDist) {
+        return;
+      }
+      for (int j = 0; j < this.width; j++) {
+        if (Math.abs(source[offset + j] - payload[j]) > tolerance) {
+          return;
+        }
+      }
+      bestDist = dist;
+      rows = source;
+      this.offset = offset;
+    }
+
+    @Override
+    public double getMaxDist() {
+      return bestDist;
+    }
+
+    void merge() {
+      double multiplicity = rows[offset + width];
+      for (int j = 0; j < width; j++) {
+        rows[offset + j] = (rows[offset + j] * multiplicity + payload[j]) / (multiplicity + 1);
+      }
+      rows[offset + width] = multiplicity + 1;
+    }
+  }
+
+  /** The length of the double[] values this KNN copies into payload columns, or 0. */
+  public int getPayloadWidth() {
+    return payloadWidth;
+  }
+
+  /** Returns an empty heap for getNeighbors() with room for this KNN's payloads. */
+  public ResultHeap newNeighborHeap() {
+    return new ResultHeap(0, storedPayloadWidth);
+  }
+
+  /** Stores at most sizeLimit points (up to maxTreeSize), evicting the oldest ones if needed. */
+  public void setSizeLimit(int sizeLimit) {
+    if (sharedView != null) {
+      // shared points are evicted for all the KNNs sharing them at once
+      sharedView.getStore().setSizeLimit(sizeLimit);
+      return;
+    }
+    this.sizeLimit = Math.min(sizeLimit, capacity);
+    while (index.size() > this.sizeLimit) {
+      removeOldest();
+    }
+  }
+
+  public int getSizeLimit() {
+    return sharedView != null ? sharedView.getStore().getSizeLimit() : sizeLimit;
+  }
+
+  /** The most points this can store, its maxTreeSize. */
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /** The fewest points (up to the capacity) for which getNumNeighbors() is maxNeighbors. */
+  public int getMinSizeLimit() {
+    return (int)Math.min(capacity, Math.ceil(maxNeighbors * neighborhoodSizeDivider));
+  }
+
+  /** The store this KNN shares its points with other KNNs through, or null if it has its own. */
+  public SharedFeatureIndex getSharedIndex() {
+    return sharedView != null ? sharedView.getStore() : null;
+  }
+
+  /** Roughly how many bytes of heap each stored point takes. */
+  public int getBytesPerPoint() {
+    if (sharedView != null) {
+      return sharedView.getStore().getBytesPerPoint();
+    }
+    // single-precision coordinates, the payload (or a reference to a small object), and a few
+    // ints of index bookkeeping
+    return 4 * features.length + (payloadWidth > 0 ? 8 * storedPayloadWidth : 28) + 16;
+  }
+
+  public int size() {
+    return index.size();
+  }
+
+  /** Merges buffered points into the index; call when there is time to spare. */
+  public void flush() {
+    index.flush();
+    version++;  // cached searches can't be resumed once the index changes
   }
 
   public List<Entry<T>> getNeighbors(WaveWithFeatures w) {
-    return tree.nearestNeighbor(embed(w), getNumNeighbors(), false);
+    return getNeighbors(locate(w), getNumNeighbors());
   }
 
   public List<Entry<T>> getNeighbors(WaveWithFeatures w, int numNeighbors) {
-    return tree.nearestNeighbor(embed(w), numNeighbors, false);
+    return getNeighbors(locate(w), numNeighbors);
+  }
+
+  /**
+   * Fills neighbors with the numNeighbors nearest points to the wave, reusing the heap's arrays.
+   * The search is pruned at the minRelativeWeight cutoff, if there is one. The result is memoized,
+   * so asking again before any points change doesn't search again.
+   */
+  public void getNeighbors(WaveWithFeatures w, int numNeighbors, ResultHeap neighbors) {
+    getNeighbors(w, numNeighbors, neighbors, false);
+  }
+
+  /**
+   * Like getNeighbors(w, numNeighbors, neighbors), but keeps a resumable search for the wave, so
+   * asking for more neighbors later continues this search instead of starting over. KNNs with a
+   * minRelativeWeight search from scratch instead, since resumed searches can't prune at it.
+   */
+  public void searchNeighbors(WaveWithFeatures w, int numNeighbors, ResultHeap neighbors) {
+    getNeighbors(w, numNeighbors, neighbors, true);
+  }
+
+  private void getNeighbors(
+      WaveWithFeatures w, int numNeighbors, ResultHeap neighbors, boolean resumable) {
+    WaveCache cache = getCache(w);
+    if (cache.numNeighbors == numNeighbors) {
+      copyNeighbors(cache.neighbors, neighbors);
+      return;
+    }
+    if (resumable && !cache.searching && weightCutoffDistance == Double.POSITIVE_INFINITY) {
+      if (cache.search == null || !cache.search.restart(cache.embedding)) {
+        cache.search = index.search(cache.embedding);
+      }
+      cache.searching = true;
+    }
+    if (cache.searching) {
+      cache.search.nearest(numNeighbors, neighbors);
+      trimToTrainingPoints(neighbors, numNeighbors);
+    } else {
+      search(cache.embedding, numNeighbors, neighbors);
+    }
+    cacheNeighbors(cache, numNeighbors, neighbors);
+  }
+
+  /**
+   * Brings the neighbors memoized for w up to date after training on the added wave, by inserting
+   * its point if it is nearer than the farthest of them instead of searching again. Fills
+   * neighbors with the result like getNeighbors(w, numNeighbors, neighbors) would, though maybe
+   * in a different order. Returns false if that isn't possible: w has no neighbors memoized for
+   * numNeighbors, the points changed in some other way since (e.g., one of the neighbors was
+   * evicted), or this KNN's neighborhoods can change in other ways when a point is added
+   * (coalescing, a weight cutoff, or a projected or sharded index).
+   */
+  public boolean updateNeighbors(
+      WaveWithFeatures w, WaveWithFeatures added, T value, int numNeighbors, ResultHeap neighbors) {
+    int i = findCache(w);
+    if (!updatable || i < 0 || caches[i].numNeighbors != numNeighbors) {
+      return false;
+    }
+    WaveCache cache = caches[i];
+    if (getVersion() != cache.version + 1) {
+      // once a shared store is full, the added point replaces the oldest one, which is fine if
+      // that one was farther than all the neighbors
+      double[] replaced = sharedView == null ? null : sharedView.getReplacedPoint(cache.version);
+      if (replaced == null ||
+          !(distance(replaced, cache.embedding) > cache.neighbors.getMaxDist())) {
+        return false;
+      }
+    }
+    double dist = distance(locate(added), cache.embedding);
+    copyNeighbors(cache.neighbors, neighbors);
+    if (payloadWidth > 0) {
+      neighbors.addValue(dist, (double[])value, 0, payloadWidth);
+    } else {
+      neighbors.addValue(dist, value);
+    }
+    cacheNeighbors(cache, numNeighbors, neighbors);
+    cache.version = getVersion();
+    cache.searching = false;
+    return true;
+  }
+
+  /** The distance the index measures between a stored point and a location. */
+  private double distance(double[] point, double[] location) {
+    if (sharedView != null) {
+      return sharedView.distance(point, location);
+    }
+    if (scratchPoint == null || scratchPoint.length != point.length) {
+      scratchPoint = new float[point.length];
+    }
+    for (int j = 0; j < point.length; j++) {
+      scratchPoint[j] = (float)point[j];
+    }
+    return NeighborIndex.distance(scratchPoint, 0, location, point.length);
+  }
+
+  /**
+   * Fills neighbors[i] with the nearest points to waves.get(i), in one batched query for the
+   * waves without cached neighbors.
+   */
+  public void getNeighbors(List<? extends WaveWithFeatures> waves, ResultHeap[] neighbors) {
+    int numNeighbors = getNumNeighbors();
+    // every wave needs its own cache until the batch is done
+    reserveCaches(waves.size());
+    List<WaveCache> missing = new ArrayList<>();
+    List<ResultHeap> missingNeighbors = new ArrayList<>();
+    for (int i = 0; i < waves.size(); i++) {
+      WaveCache cache = getCache(waves.get(i));
+      if (cache.numNeighbors == numNeighbors) {
+        copyNeighbors(cache.neighbors, neighbors[i]);
+      } else {
+        neighbors[i].reset(numNeighbors);
+        missing.add(cache);
+        missingNeighbors.add(neighbors[i]);
+      }
+    }
+    if (missing.isEmpty()) {
+      return;
+    }
+    double[][] locations = new double[missing.size()][];
+    for (int i = 0; i < missing.size(); i++) {
+      locations[i] = missing.get(i).embedding;
+    }
+    ResultHeap[] heaps = missingNeighbors.toArray(new ResultHeap[0]);
+    if (weightCutoffDistance == Double.POSITIVE_INFINITY) {
+      index.nearestNeighbors(locations, heaps);
+    } else {
+      CutoffHeap[] bounded = cutoffHeaps(heaps.length);
+      ResultHeap[] searched = new ResultHeap[heaps.length];
+      for (int i = 0; i < heaps.length; i++) {
+        bounded[i].reset(numNeighbors);
+        searched[i] = bounded[i];
+      }
+      index.nearestNeighbors(locations, searched);
+      for (int i = 0; i < heaps.length; i++) {
+        copyNeighbors(bounded[i], heaps[i]);
+      }
+    }
+    for (int i = 0; i < heaps.length; i++) {
+      trimToTrainingPoints(heaps[i], numNeighbors);
+      applyWeightCutoff(heaps[i]);
+      cacheNeighbors(missing.get(i), numNeighbors, heaps[i]);
+    }
+  }
+
+  /**
+   * Fills neighbors with the numNeighbors nearest points to location, leaving out those whose
+   * softmax weight would be under minRelativeWeight times the nearest neighbor's if a
+   * minRelativeWeight was set. The search then goes through a CutoffHeap, so it prunes at the
+   * cutoff in the same pass that finds the nearest neighbor.
+   */
+  private void search(double[] location, int numNeighbors, ResultHeap neighbors) {
+    if (weightCutoffDistance == Double.POSITIVE_INFINITY) {
+      neighbors.reset(numNeighbors);
+      index.nearestNeighbor(location, neighbors);
+    } else {
+      CutoffHeap bounded = cutoffHeaps(1)[0];
+      bounded.reset(numNeighbors);
+      index.nearestNeighbor(location, bounded);
+      copyNeighbors(bounded, neighbors);
+    }
+    trimToTrainingPoints(neighbors, numNeighbors);
+    applyWeightCutoff(neighbors);
+  }
+
+  /**
+   * Returns at least count heaps to search into with the weight cutoff as a bound. They are
+   * reused, except in snapshots, which may be queried from several threads.
+   */
+  private CutoffHeap[] cutoffHeaps(int count) {
+    CutoffHeap[] heaps = caches == null ? new CutoffHeap[count] : cutoffHeaps;
+    if (heaps.length < count) {
+      heaps = Arrays.copyOf(heaps, count);
+    }
+    for (int i = 0; i < count; i++) {
+      if (heaps[i] == null) {
+        heaps[i] = new CutoffHeap(storedPayloadWidth, weightCutoffDistance);
+      }
+    }
+    if (caches != null) {
+      cutoffHeaps = heaps;
+    }
+    return heaps;
+  }
+
+  /**
+   * A result heap whose search bound is also the weight cutoff distance past the nearest point
+   * added so far. That bound only tightens as the search goes on, so indexes prune everything
+   * past the final cutoff, and applyWeightCutoff() drops the few points that got in before the
+   * bound tightened.
+   */
+  private static class CutoffHeap extends ResultHeap {
+    private final double cutoffDistance;
+    private double bound = Double.POSITIVE_INFINITY;
+
+    CutoffHeap(int payloadWidth, double cutoffDistance) {
+      super(0, payloadWidth);
+      this.cutoffDistance = cutoffDistance;
+    }
+
+    @Override
+    public void reset(int size) {
+      super.reset(size);
+      bound = Double.POSITIVE_INFINITY;
+    }
+
+    @Override
+    public void addValue(double dist, Object value) {
+      super.addValue(dist, value);
+      tighten(dist);
+    }
+
+    @Override
+    public void addValue(double dist, double[] source, int offset, int width) {
+      super.addValue(dist, source, offset, width);
+      tighten(dist);
+    }
+
+    private void tighten(double dist) {
+      // points exactly at the cutoff are kept, but indexes only add points nearer than the bound
+      bound = Math.min(bound, Math.nextUp(dist + cutoffDistance));
+    }
+
+    @Override
+    public double getMaxDist() {
+      return Math.min(super.getMaxDist(), bound);
+    }
+  }
+
+  /**
+   * Coalesced points stand in for several training points, so drops the farthest neighbors while
+   * the rest still add up to numNeighbors training points. Otherwise the neighborhood of a
+   * heavily coalesced KNN would reach much further than an uncoalesced one's.
+   */
+  private void trimToTrainingPoints(ResultHeap neighbors, int numNeighbors) {
+    if (!coalesced) {
+      return;
+    }
+    double total = 0;
+    for (int i = 0; i < neighbors.getCount(); i++) {
+      total += neighbors.getPayload(i, payloadWidth);
+    }
+    double farthest;
+    while (neighbors.getCount() > 1 &&
+        total - (farthest = neighbors.getPayload(0, payloadWidth)) >= numNeighbors) {
+      total -= farthest;
+      neighbors.removeLargest();
+    }
+  }
+
+  private void applyWeightCutoff(ResultHeap neighbors) {
+    if (weightCutoffDistance != Double.POSITIVE_INFINITY && neighbors.getCount() > 0) {
+      double nearest = Double.POSITIVE_INFINITY;
+      for (int i = 0; i < neighbors.getCount(); i++) {
+        nearest = Math.min(nearest, neighbors.getDistance(i));
+      }
+      neighbors.retainWithin(nearest + weightCutoffDistance);
+    }
+  }
+
+  /** Returns the neighbors search() finds as entries. */
+  private List<Entry<T>> getNeighbors(double[] location, int numNeighbors) {
+    ResultHeap neighbors = newNeighborHeap();
+    search(location, numNeighbors, neighbors);
+    return neighbors.getEntries(false);
   }
 
   public int getNumNeighbors() {
-    return Math.min(maxNeighbors, Math.max(5, (int)(tree.size() / neighborhoodSizeDivider)));
+    double points = coalesced ? trainingPoints : index.size();
+    return Math.min(maxNeighbors, Math.max(5, (int)(points / neighborhoodSizeDivider)));
+  }
+
+  public void setStats(QueryStats stats) {
+    index.setStats(stats);
   }
 
   public boolean isEmpty() {
-    return tree.size() > 0;
+    return index.size() > 0;
   }
 
+  /**
+   * Returns the wave's location in the index: its scaled features, or its unscaled ones if the
+   * points are shared (the shared index applies the scales as weights). The array is memoized
+   * and later reused for other waves, so callers mustn't modify or keep it.
+   */
   public double[] embed(WaveWithFeatures w) {
-    return embed(getNormalizedFeatures(w));
+    return getCache(w).embedding;
   }
 
-  private double[] embed(Map<String, Double> normalizedFeatures) {
-    double[] embedding = new double[features.length];
+  /**
+   * Like embed(), but doesn't give the wave a cache if it has none (e.g., for training), so the
+   * waves being queried keep theirs.
+   */
+  private double[] locate(WaveWithFeatures w) {
+    if (caches == null) {
+      return computeEmbedding(w, null);
+    }
+    int i = findCache(w);
+    if (i >= 0 && !hasLiveFeatures) {
+      return caches[i].embedding;
+    }
+    return scratchEmbedding = computeEmbedding(w, scratchEmbedding);
+  }
+
+  /** Computes the wave's location into embedding, or a new array if it is null. */
+  private double[] computeEmbedding(WaveWithFeatures w, double[] embedding) {
+    if (sharedView != null) {
+      return sharedView.locate(w, embedding);
+    }
+    if (embedding == null) {
+      embedding = new double[features.length];
+    }
     for (int i = 0; i < features.length; i++) {
-      double featureVal = normalizedFeatures.get(features[i]);
-      embedding[i] = params[i].length == 1 ? params[i][0] * featureVal :
-        params[i][0] * Math.pow(1e-4 + params[i][1] + featureVal, params[i][2]);
+      double featureVal = w.getNormalizedFeature(features[i]);
+      double[] param = params[i];
+      embedding[i] = param.length == 1 ? param[0] * featureVal :
+        param[0] * Math.pow(param[1] + featureVal, param[2]);
     }
 
     if (!neuralNet.isEmpty()) {
       // simple MLP neural network
+      double[][] outputs = layerOutputs != null ? layerOutputs : newLayerOutputs();
       double[] h = embedding;
       for (int layer = 0; layer < neuralNet.size(); layer++) {
         double[][] M = neuralNet.get(layer);
-        double[] newH = activations.get(layer);
+        double[] newH = outputs[layer];
         for (int i = 0; i < h.length; i++) {
           for (int j = 0; j < newH.length; j++) {
             if (i == 0) {
@@ -130,13 +876,24 @@ public class WaveKNN<T> {
     return embedding;
   }
 
+  private double[][] newLayerOutputs() {
+    double[][] outputs = new double[neuralNet.size()][];
+    for (int layer = 0; layer < outputs.length; layer++) {
+      outputs[layer] = new double[neuralNet.get(layer)[0].length];
+    }
+    return outputs;
+  }
+
   public double[] getWeights(List<Entry<T>> neighbors) {
-    // softmax-rescaled distances to neighbors
+    // softmax-rescaled distances to neighbors, times their multiplicities if points are coalesced
     double[] weights = new double[neighbors.size()];
     double maxLogit = Double.NEGATIVE_INFINITY;
     for (int i = 0; i < neighbors.size(); i++) {
       double distance = neighbors.get(i).distance;
       double logit = distance * distanceScale;
+      if (coalesced) {
+        logit += Math.log(((double[])neighbors.get(i).value)[payloadWidth]);
+      }
       weights[i] = logit;
       maxLogit = Math.max(logit, maxLogit);
     }
@@ -144,43 +901,17 @@ public class WaveKNN<T> {
     return weights;
   }
 
-  public static Map<String, Double> getNormalizedFeatures(WaveWithFeatures w) {
-    double bft = w.distance / w.speed;
-    double latVel = w.velocity * FastTrig.sin(w.relativeHeading);
-    double advVel = w.velocity * FastTrig.cos(w.relativeHeading);
-    double advDir = w.moveDirection * FastTrig.cos(w.relativeHeading);
-    Map<String, Double> normalizedFeatures = new HashMap<>();
-    normalizedFeatures.put("virtuality", w.virtuality / 5);
-    normalizedFeatures.put("power", w.power / 3);
-    normalizedFeatures.put("bft", bft / 100);
-    normalizedFeatures.put("accel", Math.max(2 + w.accel, 0) / 2);
-    normalizedFeatures.put("accelSign", Math.signum(w.accel));
-    normalizedFeatures.put("latVel", Math.abs(latVel) / 8);
-    normalizedFeatures.put("vel", Math.abs(w.velocity) / 8);
-    normalizedFeatures.put("vel=8", Math.abs(w.velocity) > 7.9 ? 1.0 : 0.0);
-    normalizedFeatures.put("advVel", (advVel + 16) / 8);
-    normalizedFeatures.put("advDir", (advDir + 1) / 2);
-    normalizedFeatures.put("vChangeTimer", Math.min(w.vChangeTimer, 70) / bft);
-    normalizedFeatures.put("dirChangeTimer", Math.min(w.dirChangeTimer, 70) / bft);
-    normalizedFeatures.put("decelTimer", Math.min(w.decelTimer, 70) / bft);
-    normalizedFeatures.put("distanceLast10", w.distanceLast10 / 80);
-    normalizedFeatures.put("distanceLast20", w.distanceLast20 / 160);
-    normalizedFeatures.put("mirrorOffset", w.mirrorOffset + Math.PI);
-    normalizedFeatures.put("orbitalWallAhead", w.orbitalWallAhead / 1.5);
-    normalizedFeatures.put("orbitalWallReverse", w.orbitalWallReverse / 1.5);
-    normalizedFeatures.put("maeWallAhead", w.maeWallAhead);
-    normalizedFeatures.put("maeWallReverse", w.maeWallReverse);
-    normalizedFeatures.put("stickWallAhead", w.stickWallAhead / (Math.PI / 2));
-    normalizedFeatures.put("stickWallReverse", w.stickWallReverse / (Math.PI / 2));
-    normalizedFeatures.put("stickWallAhead2", w.stickWallAhead2 / (Math.PI / 2));
-    normalizedFeatures.put("stickWallReverse2", w.stickWallReverse2 / (Math.PI / 2));
-    normalizedFeatures.put("stickWallAhead=0", w.stickWallAhead < 0.001 ? 1.0 : 0.0);
-    normalizedFeatures.put("stickWallReverse=0", w.stickWallReverse < 0.001 ? 1.0 : 0.0);
-    normalizedFeatures.put("gameTime", w.fireTime / 500.0);
-    normalizedFeatures.put("shotsFired", w.shotsFired / 1000.0);
-    normalizedFeatures.put("currentGF", (1 + w.currentGF) / 2);
-    normalizedFeatures.put("didHit", w.didHit ? 1.0 : 0.0);
-    normalizedFeatures.put("didCollide", w.didCollide ? 1.0 : 0.0);
-    return normalizedFeatures;
+  /** Writes the softmax weights of the neighbors into weights, which must be long enough. */
+  public void getWeights(ResultHeap neighbors, double[] weights) {
+    double maxLogit = Double.NEGATIVE_INFINITY;
+    for (int i = 0; i < neighbors.getCount(); i++) {
+      double logit = neighbors.getDistance(i) * distanceScale;
+      if (coalesced) {
+        logit += Math.log(neighbors.getPayload(i, payloadWidth));
+      }
+      weights[i] = logit;
+      maxLogit = Math.max(logit, maxLogit);
+    }
+    MathUtils.softmax(weights, neighbors.getCount(), maxLogit);
   }
 }
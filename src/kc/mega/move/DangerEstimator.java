@@ -2,6 +2,7 @@ package kc.mega.move;
 
 import kc.mega.game.GameState;
 import kc.mega.game.HitRateTracker;
+import kc.mega.model.SharedFeatureIndex;
 import kc.mega.move.models.DangerModel;
 import kc.mega.move.models.DangerModels;
 import kc.mega.move.wave.MovementWave;
@@ -45,6 +46,9 @@ public class DangerEstimator {
     waveDangerTrackers = new HashMap<>();
     activeEstimators = new ArrayList<>();
 
+    // the KNN models trained on the same waves (hits or visits) store each one once
+    SharedFeatureIndex hitPoints = new SharedFeatureIndex(3000, 1);
+    SharedFeatureIndex visitPoints = new SharedFeatureIndex(5000, 1);
     // weights and hit rate thresholds were learned offline
     estimators = Arrays.asList(
         // simulated targeting methods
@@ -56,21 +60,21 @@ public class DangerEstimator {
         new Estimator(DangerModels.nanoLinearFixedSpeed(bins), 0.0, 0.07, 0.2),
         new Estimator(DangerModels.currentGF(bins), 1, 0.3),
         // KNN models trained against various bots
-        new Estimator(DangerModels.simple(bins), 0.0, 0.75),
-        new Estimator(DangerModels.simple2(bins), 0.06, 0.75),
-        new Estimator(DangerModels.thorn(bins), 0.06, 2.0),
-        new Estimator(DangerModels.druss(bins), 0.08, 2.0),
-        new Estimator(DangerModels.diamond(bins), 0.07, 1.5),
-        new Estimator(DangerModels.komarious(bins), 0.05, 1.0),
-        new Estimator(DangerModels.splinter(bins), 0.0, 0.5),
-        new Estimator(DangerModels.waveShark(bins), 0.03, 3.5),
-        new Estimator(DangerModels.microAspid(bins), 0.03, 1.5),
-        new Estimator(DangerModels.sedan(bins), 0.08, 1.5),
+        new Estimator(DangerModels.simple(bins, hitPoints), 0.0, 0.75),
+        new Estimator(DangerModels.simple2(bins, hitPoints), 0.06, 0.75),
+        new Estimator(DangerModels.thorn(bins, hitPoints), 0.06, 2.0),
+        new Estimator(DangerModels.druss(bins, hitPoints), 0.08, 2.0),
+        new Estimator(DangerModels.diamond(bins, hitPoints), 0.07, 1.5),
+        new Estimator(DangerModels.komarious(bins, hitPoints), 0.05, 1.0),
+        new Estimator(DangerModels.splinter(bins, hitPoints), 0.0, 0.5),
+        new Estimator(DangerModels.waveShark(bins, hitPoints), 0.03, 3.5),
+        new Estimator(DangerModels.microAspid(bins, hitPoints), 0.03, 1.5),
+        new Estimator(DangerModels.sedan(bins, hitPoints), 0.08, 1.5),
         // flattener KNN models (https://robowiki.net/wiki/Flattener)
-        new Estimator(DangerModels.flattener1(bins), 0.09, 2.0, false),
-        new Estimator(DangerModels.flattener2(bins), 0.09, 2.0, false),
-        new Estimator(DangerModels.flattener3(bins), 0.02, 2.5, false),
-        new Estimator(DangerModels.flattener4(bins), 0.02, 3.0, false),
+        new Estimator(DangerModels.flattener1(bins, visitPoints), 0.09, 2.0, false),
+        new Estimator(DangerModels.flattener2(bins, visitPoints), 0.09, 2.0, false),
+        new Estimator(DangerModels.flattener3(bins, visitPoints), 0.02, 2.5, false),
+        new Estimator(DangerModels.flattener4(bins, visitPoints), 0.02, 3.0, false),
         new Estimator(DangerModels.apmFlattener(bins), 0.06, 0.5, false)
     );
     antiRamMultipliers = Map.of("Circular", 1.0, "Linear", 1.0, "Sedan", 1.0,
@@ -95,8 +99,39 @@ public class DangerEstimator {
     movementWaves.updatedShadowWaves.clear();
     for (Estimator estimator : estimators) {
       estimator.model.onTurn(gs);
+      if (surfableWaves.isEmpty()) {
+        estimator.model.flush();  // nothing to surf this turn, so there is time to spare
+      }
     }
     setActiveEstimators();
+    if (!strategy.ram) {
+      computeMissingDangers(surfableWaves);
+    }
+  }
+
+  /** Computes each active estimator's dangers for all waves about to be surfed in one batch. */
+  private void computeMissingDangers(List<MovementWave> waves) {
+    List<DangerTracker> dangerTrackers = new ArrayList<>();
+    for (MovementWave w : waves) {
+      dangerTrackers.add(getDangerTracker(w));
+    }
+    for (Estimator estimator : activeEstimators) {
+      List<DangerTracker> missing = new ArrayList<>();
+      List<MovementWave> missingWaves = new ArrayList<>();
+      for (DangerTracker dangerTracker : dangerTrackers) {
+        if (dangerTracker.uses(estimator) &&
+            !dangerTracker.estimatorDangers.containsKey(estimator)) {
+          missing.add(dangerTracker);
+          missingWaves.add(dangerTracker.w);
+        }
+      }
+      if (missing.size() > 1) {
+        List<double[]> dangers = estimator.model.getDangers(missingWaves);
+        for (int i = 0; i < missing.size(); i++) {
+          missing.get(i).setEstimatorDangers(estimator, dangers.get(i));
+        }
+      }
+    }
   }
 
   public void onSeeBullet(MovementWave w) {
@@ -113,7 +148,7 @@ public class DangerEstimator {
         estimator.model.train(w);
         for (Map.Entry<MovementWave, DangerTracker> e : waveDangerTrackers.entrySet()) {
           if (e.getKey() != w && !e.getKey().isVirtual) {
-            e.getValue().onUpdatedEstimator(estimator);
+            e.getValue().onUpdatedEstimator(estimator, w);
           }
         }
       }
@@ -234,6 +269,8 @@ public class DangerEstimator {
   private class DangerTracker {
     private final MovementWave w;
     private final Map<Estimator, double[]> estimatorDangers;
+    // the version of each estimator's model its dangers were computed with
+    private final Map<Estimator, Long> estimatorVersions;
     private final Map<Range, Double> rangeDangers;
     private double[] combinedDangers;
     private double[] shadowedDangers;
@@ -241,6 +278,7 @@ public class DangerEstimator {
     private DangerTracker(MovementWave w) {
       this.w = w;
       estimatorDangers = new HashMap<>();
+      estimatorVersions = new HashMap<>();
       rangeDangers = new HashMap<>();
       combinedDangers = null;
       shadowedDangers = null;
@@ -282,9 +320,7 @@ public class DangerEstimator {
       for (Estimator estimator : activeEstimators) {
         double multiplier = (strategy.antiRam ? antiRamMultipliers.get(estimator.model.name) :
           estimator.multiplier) * (strategy.antiHOT && estimator.model.name.equals("HOT") ? 2 : 1);
-        if (estimator.isHitModel == useHitModels && (!strategy.antiRam || !w.isSimulated ||
-            estimator.model.name.equals("Circular") ||
-            estimator.model.name.equals("NanoLinearFixedSpeed"))) {
+        if (estimator.isHitModel == useHitModels && usesWhenAntiRamming(estimator)) {
           double[] dangers = getEstimatorDangers(estimator);
           for (int i = 0; i < dangers.length; i++) {
             unsmoothedDangers[i] += dangers[i] * estimator.weight * multiplier;
@@ -294,13 +330,27 @@ public class DangerEstimator {
       return unsmoothedDangers;
     }
 
+    private boolean usesWhenAntiRamming(Estimator estimator) {
+      return !strategy.antiRam || !w.isSimulated || estimator.model.name.equals("Circular") ||
+          estimator.model.name.equals("NanoLinearFixedSpeed");
+    }
+
+    /** Whether getDangers() will need the estimator's dangers for this wave. */
+    private boolean uses(Estimator estimator) {
+      return (estimator.isHitModel || !w.isVirtual) && usesWhenAntiRamming(estimator);
+    }
+
     private double[] getEstimatorDangers(Estimator estimator) {
       if (estimatorDangers.containsKey(estimator)) {
         return estimatorDangers.get(estimator);
       }
-      double[] dangers = estimator.model.getDangers(w);
+      return setEstimatorDangers(estimator, estimator.model.getDangers(w));
+    }
+
+    private double[] setEstimatorDangers(Estimator estimator, double[] dangers) {
       MathUtils.normalize(dangers);
       estimatorDangers.put(estimator, dangers);
+      estimatorVersions.put(estimator, estimator.model.getVersion());
       return dangers;
     }
 
@@ -312,10 +362,18 @@ public class DangerEstimator {
       shadowedDangers = combinedDangers = null;
     }
 
-    public void onUpdatedEstimator(Estimator estimator) {
-      if (estimatorDangers.containsKey(estimator)) {
+    public void onUpdatedEstimator(Estimator estimator, MovementWave trained) {
+      // models that didn't change (e.g., ones that don't learn) still have the same dangers
+      if (estimatorDangers.containsKey(estimator) &&
+          estimatorVersions.get(estimator) != estimator.model.getVersion()) {
         shadowedDangers = combinedDangers = null;
-        estimatorDangers.remove(estimator);
+        // KNN models can usually patch their dangers for the one new point without a new query
+        double[] dangers = estimator.model.getUpdatedDangers(w, trained);
+        if (dangers != null) {
+          setEstimatorDangers(estimator, dangers);
+        } else {
+          estimatorDangers.remove(estimator);
+        }
       }
     }
   }
@@ -336,6 +394,11 @@ public class DangerEstimator {
       }
     }
     setEstimatorWeights(activeEstimators);
+    for (Estimator estimator : estimators) {
+      // give stored points to the estimators that matter most right now
+      estimator.model.setMemoryPriority(
+          activeEstimators.contains(estimator) ? estimator.weight : 0);
+    }
     if (activeEstimatorsChanged) {
       for (DangerTracker dangerTracker : waveDangerTrackers.values()) {
         dangerTracker.onActiveEstimatorsChanged();
@@ -375,6 +438,18 @@ public class DangerEstimator {
     }
   }
 
+  public void flush() {
+    for (Estimator estimator : estimators) {
+      estimator.model.flush();
+    }
+  }
+
+  public void printQueryStats() {
+    for (Estimator estimator : estimators) {
+      estimator.model.printQueryStats();
+    }
+  }
+
   /** Controls the weight of a danger model and decides when to turn it on or off. */
   private class Estimator {
     public final DangerModel model;
@@ -136,9 +136,14 @@ public class Mover {
     //datasetWriter.INSTANCE.write("move-data-hits", hitWave.asArray());
   }
 
+  public void flush() {
+    dangerEstimator.flush();
+  }
+
   public void printStats(boolean verbose) {
     if (verbose) {
       dangerEstimator.printEstimatorWeights();
+      dangerEstimator.printQueryStats();
     }
     System.out.println("Enemy Hit Rate: " + gs.enemyHitRateTracker.getHitRateStr());
   }
@@ -36,9 +36,10 @@ public class APMFlattener extends DangerModel {
     }
     int maxMatches = Math.min(10, history.length() / 10);
     int matches = 0;
-    int matchLen = Math.min(40, w.pattern.length());
+    String wavePattern = w.pattern();
+    int matchLen = Math.min(40, wavePattern.length());
     while (matches < maxMatches) {
-      String pattern = w.pattern.substring(0, matchLen);
+      String pattern = wavePattern.substring(0, matchLen);
       int matchPos = MIN_TICKS_AHEAD + (int)(gameTime - w.fireTime);
       while (matches < maxMatches && (matchPos = history.indexOf(pattern, matchPos)) > 0) {
         double offset = 0;
@@ -3,6 +3,8 @@ package kc.mega.move.models;
 import kc.mega.model.Model;
 import kc.mega.wave.WaveWithFeatures;
 
+import java.util.ArrayList;
+import java.util.List;
 
 /** Base class for a wave surfing model that assigns dangers to guessfactor bins. */
 public abstract class DangerModel extends Model {
@@ -11,4 +13,29 @@ public abstract class DangerModel extends Model {
   }
 
   public abstract double[] getDangers(WaveWithFeatures w);
+
+  /**
+   * Returns a number that changes whenever training may have changed the model's dangers. Models
+   * that don't learn from training waves always return 0.
+   */
+  public long getVersion() {
+    return 0;
+  }
+
+  /**
+   * Returns the wave's dangers after training on the trained wave, derived from the model's
+   * earlier results for it instead of computed from scratch, or null if the model can't do that.
+   */
+  public double[] getUpdatedDangers(WaveWithFeatures w, WaveWithFeatures trained) {
+    return null;
+  }
+
+  /** Returns the dangers for each wave; override to share work across the waves. */
+  public List<double[]> getDangers(List<? extends WaveWithFeatures> waves) {
+    List<double[]> dangers = new ArrayList<>(waves.size());
+    for (WaveWithFeatures w : waves) {
+      dangers.add(getDangers(w));
+    }
+    return dangers;
+  }
 }
\ No newline at end of file
@@ -1,39 +1,105 @@
 package kc.mega.move.models;
 
+import kc.mega.model.MemoryBudget;
 import kc.mega.model.WaveKNN;
 import kc.mega.wave.GFBins;
 import kc.mega.wave.WaveWithFeatures;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
-import ags.utils.KdTree.Entry;
+import ags.utils.KdTree.ResultHeap;
 
-/** KNN model for estimating waveSurfing dangers */
+/** KNN model for estimating waveSurfing dangers; stores hit guessfactors as payloads. */
 public class KNNDangerModel extends DangerModel {
-  public final WaveKNN<Double> knn;
+  public final WaveKNN<double[]> knn;
   public final GFBins bins;
+  // reused across queries to avoid garbage collection pauses
+  private final ResultHeap neighbors;
+  private final double[] payload = new double[1];
+  private ResultHeap[] batchNeighbors = new ResultHeap[0];
+  private double[] weights = new double[0];
 
-  public KNNDangerModel(String name, GFBins bins, WaveKNN<Double> knn) {
+  public KNNDangerModel(String name, GFBins bins, WaveKNN<double[]> knn) {
     super(name);
+    // train() reuses one payload array, so the KNN has to copy it
+    if (knn.getPayloadWidth() != payload.length) {
+      throw new IllegalStateException(name + " needs a KNN with payloads(" + payload.length + ")");
+    }
     this.knn = knn;
+    neighbors = knn.newNeighborHeap();
+    knn.setStats(queryStats);
+    MemoryBudget.INSTANCE.register(name, knn);
     this.bins = bins;
   }
 
   @Override
   public void train(WaveWithFeatures w) {
-    knn.addPoint(w, w.hitGF());
+    payload[0] = w.hitGF();
+    knn.addPoint(w, payload);
+  }
+
+  @Override
+  public double[] getUpdatedDangers(WaveWithFeatures w, WaveWithFeatures trained) {
+    // the new point only changes the neighbors if it is nearer than the farthest one
+    payload[0] = trained.hitGF();
+    if (!knn.updateNeighbors(w, trained, payload, knn.getNumNeighbors(), neighbors)) {
+      return null;
+    }
+    return binDangers(neighbors);
+  }
+
+  @Override
+  public long getVersion() {
+    return knn.getVersion();
+  }
+
+  @Override
+  public void setMemoryPriority(double priority) {
+    MemoryBudget.INSTANCE.setPriority(knn, priority);
+  }
+
+  @Override
+  public void flush() {
+    knn.flush();
   }
 
   @Override
   public double[] getDangers(WaveWithFeatures w) {
-    List<Entry<Double>> neighbors = knn.getNeighbors(w);
+    knn.getNeighbors(w, knn.getNumNeighbors(), neighbors);
+    return binDangers(neighbors);
+  }
+
+  @Override
+  public List<double[]> getDangers(List<? extends WaveWithFeatures> waves) {
+    if (batchNeighbors.length < waves.size()) {
+      int oldLength = batchNeighbors.length;
+      batchNeighbors = Arrays.copyOf(batchNeighbors, waves.size());
+      for (int i = oldLength; i < batchNeighbors.length; i++) {
+        batchNeighbors[i] = knn.newNeighborHeap();
+      }
+    }
+    knn.getNeighbors(waves, batchNeighbors);
+    List<double[]> dangers = new ArrayList<>(waves.size());
+    for (int i = 0; i < waves.size(); i++) {
+      dangers.add(binDangers(batchNeighbors[i]));
+    }
+    return dangers;
+  }
+
+  private double[] binDangers(ResultHeap neighbors) {
     double[] dangers = new double[bins.nBins];
-    if (neighbors.isEmpty()) {
+    int n = neighbors.getCount();
+    if (n == 0) {
       return dangers;
     }
-    double[] weights = knn.getWeights(neighbors);
-    for (int i = 0; i < neighbors.size(); i++) {
-      dangers[bins.getBin(neighbors.get(i).value)] += weights[i];
+    if (weights.length < n) {
+      weights = new double[n];
+    }
+    knn.getWeights(neighbors, weights);
+    for (int i = 0; i < n; i++) {
+      dangers[bins.getBin(neighbors.getPayload(i, 0))] += weights[i];
     }
     return dangers;
   }
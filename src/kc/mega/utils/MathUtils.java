@@ -44,13 +44,20 @@ public class MathUtils {
   }
 
   public static void softmax(double[] logits, double maxLogit) {
+    softmax(logits, logits.length, maxLogit);
+  }
+
+  /** Softmax over the first n logits, in place. */
+  public static void softmax(double[] logits, int n, double maxLogit) {
     double total = 0;
-    for (int i = 0; i < logits.length; i++) {
+    for (int i = 0; i < n; i++) {
       double weight = Math.exp(logits[i] - maxLogit);
       logits[i] = weight;
       total += weight;
     }
-    divide(logits, total);
+    for (int i = 0; i < n; i++) {
+      logits[i] /= total;
+    }
   }
 
   public static double[] addArrays(double[] x, double[] y) {
@@ -0,0 +1,56 @@
+package kc.mega.wave;
+
+/**
+ * The normalized features of a wave that KNN models can use (see
+ * WaveWithFeatures.getNormalizedFeature()). Each has the key models refer to it by.
+ */
+public enum Feature {
+  VIRTUALITY("virtuality"),
+  POWER("power"),
+  BFT("bft"),
+  ACCEL("accel"),
+  ACCEL_SIGN("accelSign"),
+  LAT_VEL("latVel"),
+  VEL("vel"),
+  VEL_IS_8("vel=8"),
+  ADV_VEL("advVel"),
+  ADV_DIR("advDir"),
+  V_CHANGE_TIMER("vChangeTimer"),
+  DIR_CHANGE_TIMER("dirChangeTimer"),
+  DECEL_TIMER("decelTimer"),
+  DISTANCE_LAST_10("distanceLast10"),
+  DISTANCE_LAST_20("distanceLast20"),
+  MIRROR_OFFSET("mirrorOffset"),
+  ORBITAL_WALL_AHEAD("orbitalWallAhead"),
+  ORBITAL_WALL_REVERSE("orbitalWallReverse"),
+  MAE_WALL_AHEAD("maeWallAhead"),
+  MAE_WALL_REVERSE("maeWallReverse"),
+  STICK_WALL_AHEAD("stickWallAhead"),
+  STICK_WALL_REVERSE("stickWallReverse"),
+  STICK_WALL_AHEAD_2("stickWallAhead2"),
+  STICK_WALL_REVERSE_2("stickWallReverse2"),
+  STICK_WALL_AHEAD_IS_0("stickWallAhead=0"),
+  STICK_WALL_REVERSE_IS_0("stickWallReverse=0"),
+  GAME_TIME("gameTime"),
+  SHOTS_FIRED("shotsFired"),
+  CURRENT_GF("currentGF"),
+  DID_HIT("didHit"),
+  DID_COLLIDE("didCollide");
+
+  public static final int COUNT = values().length;
+
+  public final String key;
+
+  Feature(String key) {
+    this.key = key;
+  }
+
+  public static Feature withKey(String key) {
+    for (Feature feature : values()) {
+      if (feature.key.equals(key)) {
+        return feature;
+      }
+    }
+    throw new IllegalStateException("Unknown feature " + key);
+  }
+}
@@ -9,7 +9,13 @@ import java.util.List;
 
 import jk.math.FastTrig;
 
-/** Associates a wave with various features about the targeted bot. */
+/**
+ * Associates a wave with various features about the targeted bot. Waves are confined to the
+ * robot thread: expensive features are memoized on first use without synchronization, so another
+ * thread could see one half written. Call computeFeatures() before handing a wave to another
+ * thread (through something that synchronizes, like an executor), after which reading its
+ * features doesn't write anything.
+ */
 public class WaveWithFeatures extends Wave {
   public final BotState fireState;  // aimer's state for the next tick (when they fire)
   public final BotState myState;  // aimer's state for the current tick
@@ -29,19 +35,28 @@ public class WaveWithFeatures extends Wave {
   public final double distanceLast10;  // distance the bot moved over the last 10 ticks
   public final double distanceLast20;  // distance the bot moved over the last 20 ticks
   public final double mirrorOffset;  // how much the bot is off from the aimer's mirrored position
-  public final double stickWallAhead;  // how much the bot has to deviate from orbital heading to
-                                       // avoid hitting a wall
-  public final double stickWallReverse;  // stickWallAhead if the bot reversed their direction
-  public final double stickWallAhead2;  // how much the bot has to deviate to avoid hitting a wall
-  public final double stickWallReverse2;  // stickWallAhead2 if the bot reversed their direction
-  public final double maeWallAhead;  // how much the wall restricts the bot's max escape angle
-  public final double maeWallReverse;  // maeWallAhead if the bot reversed their direction
-  public final double orbitalWallAhead;  // orbital degrees from the bot towards the wall
-  public final double orbitalWallReverse;  // orbitalWallAhead if the bot reversed their direction
   public final int shotsFired;  // how many shots the aimer has fired in the battle
   public final double virtuality;  // how far from a real bullet wave this wave is
   public final double currentGF;  // the bot's current guessfactor
-  public final String pattern;  // discrete history of bot movement for pattern matching
+
+  // The wall features and movement pattern are comparatively expensive, so they are computed on
+  // first use (NaN or null until then). Waves only pay for what the models using them need.
+  private double stickWallAhead = Double.NaN;
+  private double stickWallReverse = Double.NaN;
+  private double stickWallAhead2 = Double.NaN;
+  private double stickWallReverse2 = Double.NaN;
+  private double maeWallAhead = Double.NaN;
+  private double maeWallReverse = Double.NaN;
+  private double orbitalWallAhead = Double.NaN;
+  private double orbitalWallReverse = Double.NaN;
+  private String pattern;
+  // the states the pattern is made from, copied since the histories keep changing
+  private BotState[] patternMyStates;
+  private BotState[] patternEnemyStates;
+
+  // normalized features computed so far, shared by all models (bit i is set once feature i is)
+  private final double[] normalizedFeatures = new double[Feature.COUNT];
+  private long normalizedMask;
 
   public static class Builder extends Wave.Builder {
     public Waves<?> waves;
@@ -89,8 +104,9 @@ public class WaveWithFeatures extends Wave {
     double totalVelocity = 0;
     double totalWeight = 0;
     double weight = 1;
-    String patternn = "";
+    int ticksScanned = 0;
     for (int i = 0; i < Math.min(71, enemyHistory.size()); i++) {
+      ticksScanned++;
       BotState enemyState = enemyHistory.get(i);
       double vel = enemyState.velocity;
       totalVelocity += weight * vel;
@@ -114,9 +130,6 @@ public class WaveWithFeatures extends Wave {
         decelTimerr = i - 1;
         timersSet++;
       }
-      if (i < myHistory.size()) {
-        patternn += getPMSymbol(myHistory.get(i), enemyState);
-      }
       if (timersSet == 3 && i > 30) {
         break;
       }
@@ -128,7 +141,10 @@ public class WaveWithFeatures extends Wave {
     vChangeTimer = vChangeTimerr;
     dirChangeTimer = dirChangeTimerr;
     decelTimer = decelTimerr;
-    pattern = patternn;
+    int patternLength = Math.min(ticksScanned, myHistory.size());
+    patternMyStates = myHistory.subList(0, patternLength).toArray(new BotState[patternLength]);
+    patternEnemyStates =
+        enemyHistory.subList(0, patternLength).toArray(new BotState[patternLength]);
     avgVelocity = totalVelocity / (totalWeight == 0 ? 1 : totalWeight);
     distanceLast10 = enemyLocation.distance(
         enemyHistory.get(Math.min(12, enemyHistory.size() - 1)).location);
@@ -137,29 +153,167 @@ public class WaveWithFeatures extends Wave {
 
     mirrorOffset = Geom.offset(
         myNextLocation, BattleField.INSTANCE.getCenter(), absoluteBearing) * orbitDirection;
+  }
+
+  /** How much the bot has to deviate from orbital heading to avoid hitting a wall. */
+  public double stickWallAhead() {
+    if (Double.isNaN(stickWallAhead)) {
+      stickWallAhead = stickWallDeviation(orbitalHeading(), 1);
+    }
+    return stickWallAhead;
+  }
+
+  /** stickWallAhead if the bot reversed their direction. */
+  public double stickWallReverse() {
+    if (Double.isNaN(stickWallReverse)) {
+      stickWallReverse = stickWallDeviation(orbitalHeading(), -1);
+    }
+    return stickWallReverse;
+  }
+
+  /** How much the bot has to deviate from their heading to avoid hitting a wall. */
+  public double stickWallAhead2() {
+    if (Double.isNaN(stickWallAhead2)) {
+      stickWallAhead2 = stickWallDeviation(enemyState.heading, 1);
+    }
+    return stickWallAhead2;
+  }
+
+  /** stickWallAhead2 if the bot reversed their direction. */
+  public double stickWallReverse2() {
+    if (Double.isNaN(stickWallReverse2)) {
+      stickWallReverse2 = stickWallDeviation(enemyState.heading, -1);
+    }
+    return stickWallReverse2;
+  }
+
+  private double orbitalHeading() {
+    return absoluteBearing + orbitDirection * moveDirection * Math.PI / 2;
+  }
+
+  private double stickWallDeviation(double heading, int dir) {
+    double smoothed = BattleField.INSTANCE.walkingStickSmooth(
+        enemyState.location, heading, dir * moveDirection, dir * orbitDirection, 160, 18);
+    return Math.abs(FastTrig.normalRelativeAngle(smoothed - heading));
+  }
+
+  /** How much the wall restricts the bot's max escape angle. */
+  public double maeWallAhead() {
+    if (Double.isNaN(maeWallAhead)) {
+      computeMaeWalls();
+    }
+    return maeWallAhead;
+  }
+
+  /** maeWallAhead if the bot reversed their direction. */
+  public double maeWallReverse() {
+    if (Double.isNaN(maeWallReverse)) {
+      computeMaeWalls();
+    }
+    return maeWallReverse;
+  }
+
+  private void computeMaeWalls() {
     double maxEscapeAngle = Geom.simpleMaxEscapeAngle(speed);
-    orbitalWallAhead = BattleField.INSTANCE.orbitalWallDistance(
-        myState, enemyState, orbitDirection, maxEscapeAngle);
-    orbitalWallReverse = BattleField.INSTANCE.orbitalWallDistance(
-        myState, enemyState, -orbitDirection, maxEscapeAngle);
     double[] inFieldMaes = Geom.inFieldMaxEscapeAngles(
-        myNextLocation, enemyLocation, speed);
+        fireState.location, enemyState.location, speed);
     maeWallAhead = (orbitDirection < 0 ? inFieldMaes[0] : inFieldMaes[1]) / maxEscapeAngle;
     maeWallReverse = (orbitDirection > 0 ? inFieldMaes[0] : inFieldMaes[1]) / maxEscapeAngle;
+  }
 
-    class StickWallFeaturizer {
-      double get(double heading, int dir) {
-        double smoothed = BattleField.INSTANCE.walkingStickSmooth(
-            enemyState.location, heading, dir * moveDirection, dir * orbitDirection, 160, 18);
-        return Math.abs(FastTrig.normalRelativeAngle(smoothed - heading));
+  /** Orbital degrees from the bot towards the wall. */
+  public double orbitalWallAhead() {
+    if (Double.isNaN(orbitalWallAhead)) {
+      orbitalWallAhead = BattleField.INSTANCE.orbitalWallDistance(
+          myState, enemyState, orbitDirection, Geom.simpleMaxEscapeAngle(speed));
+    }
+    return orbitalWallAhead;
+  }
+
+  /** orbitalWallAhead if the bot reversed their direction. */
+  public double orbitalWallReverse() {
+    if (Double.isNaN(orbitalWallReverse)) {
+      orbitalWallReverse = BattleField.INSTANCE.orbitalWallDistance(
+          myState, enemyState, -orbitDirection, Geom.simpleMaxEscapeAngle(speed));
+    }
+    return orbitalWallReverse;
+  }
+
+  /**
+   * Computes every feature and the pattern now instead of on first use, so the wave can be read
+   * from other threads. didHit and didCollide can still change while the wave is in flight.
+   */
+  public void computeFeatures() {
+    for (Feature feature : Feature.values()) {
+      getNormalizedFeature(feature);
+    }
+    pattern();
+  }
+
+  /** Discrete history of bot movement for pattern matching. */
+  public String pattern() {
+    if (pattern == null) {
+      StringBuilder symbols = new StringBuilder(patternMyStates.length);
+      for (int i = 0; i < patternMyStates.length; i++) {
+        symbols.append(getPMSymbol(patternMyStates[i], patternEnemyStates[i]));
       }
+      pattern = symbols.toString();
+    }
+    return pattern;
+  }
+
+  /**
+   * Returns the feature scaled to around [0, 1]. Each feature is computed on first use and then
+   * shared by all models, except didHit and didCollide, which can change while the wave is in
+   * flight.
+   */
+  public double getNormalizedFeature(Feature feature) {
+    long bit = 1L << feature.ordinal();
+    if ((normalizedMask & bit) != 0) {
+      return normalizedFeatures[feature.ordinal()];
+    }
+    double value;
+    switch (feature) {
+      case VIRTUALITY: value = virtuality / 5; break;
+      case POWER: value = power / 3; break;
+      case BFT: value = bft() / 100; break;
+      case ACCEL: value = Math.max(2 + accel, 0) / 2; break;
+      case ACCEL_SIGN: value = Math.signum(accel); break;
+      case LAT_VEL: value = Math.abs(velocity * FastTrig.sin(relativeHeading)) / 8; break;
+      case VEL: value = Math.abs(velocity) / 8; break;
+      case VEL_IS_8: value = Math.abs(velocity) > 7.9 ? 1.0 : 0.0; break;
+      case ADV_VEL: value = (velocity * FastTrig.cos(relativeHeading) + 16) / 8; break;
+      case ADV_DIR: value = (moveDirection * FastTrig.cos(relativeHeading) + 1) / 2; break;
+      case V_CHANGE_TIMER: value = Math.min(vChangeTimer, 70) / bft(); break;
+      case DIR_CHANGE_TIMER: value = Math.min(dirChangeTimer, 70) / bft(); break;
+      case DECEL_TIMER: value = Math.min(decelTimer, 70) / bft(); break;
+      case DISTANCE_LAST_10: value = distanceLast10 / 80; break;
+      case DISTANCE_LAST_20: value = distanceLast20 / 160; break;
+      case MIRROR_OFFSET: value = mirrorOffset + Math.PI; break;
+      case ORBITAL_WALL_AHEAD: value = orbitalWallAhead() / 1.5; break;
+      case ORBITAL_WALL_REVERSE: value = orbitalWallReverse() / 1.5; break;
+      case MAE_WALL_AHEAD: value = maeWallAhead(); break;
+      case MAE_WALL_REVERSE: value = maeWallReverse(); break;
+      case STICK_WALL_AHEAD: value = stickWallAhead() / (Math.PI / 2); break;
+      case STICK_WALL_REVERSE: value = stickWallReverse() / (Math.PI / 2); break;
+      case STICK_WALL_AHEAD_2: value = stickWallAhead2() / (Math.PI / 2); break;
+      case STICK_WALL_REVERSE_2: value = stickWallReverse2() / (Math.PI / 2); break;
+      case STICK_WALL_AHEAD_IS_0: value = stickWallAhead() < 0.001 ? 1.0 : 0.0; break;
+      case STICK_WALL_REVERSE_IS_0: value = stickWallReverse() < 0.001 ? 1.0 : 0.0; break;
+      case GAME_TIME: value = fireTime / 500.0; break;
+      case SHOTS_FIRED: value = shotsFired / 1000.0; break;
+      case CURRENT_GF: value = (1 + currentGF) / 2; break;
+      case DID_HIT: return didHit ? 1.0 : 0.0;
+      case DID_COLLIDE: return didCollide ? 1.0 : 0.0;
+      default: throw new IllegalStateException("Unknown feature " + feature);
     }
-    StickWallFeaturizer featurizer = new StickWallFeaturizer();
-    double orbitalHeading = absoluteBearing + orbitDirection * moveDirection * Math.PI / 2;
-    stickWallAhead = featurizer.get(orbitalHeading, 1);
-    stickWallReverse = featurizer.get(orbitalHeading, -1);
-    stickWallAhead2 = featurizer.get(enemyState.heading, 1);
-    stickWallReverse2 = featurizer.get(enemyState.heading, -1);
+    normalizedFeatures[feature.ordinal()] = value;
+    normalizedMask |= bit;
+    return value;
+  }
+
+  private double bft() {
+    return distance / speed;
   }
 
   public double[] toArray() {
@@ -185,14 +339,14 @@ public class WaveWithFeatures extends Wave {
         distanceLast10,
         distanceLast20,
         mirrorOffset,
-        orbitalWallAhead,
-        orbitalWallReverse,
-        maeWallAhead,
-        maeWallReverse,
-        stickWallAhead,
-        stickWallReverse,
-        stickWallAhead2,
-        stickWallReverse2,
+        orbitalWallAhead(),
+        orbitalWallReverse(),
+        maeWallAhead(),
+        maeWallReverse(),
+        stickWallAhead(),
+        stickWallReverse(),
+        stickWallAhead2(),
+        stickWallReverse2(),
         virtuality,
         maePrecise[0],
         maePrecise[1],